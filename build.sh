@@ -7,3 +7,8 @@ javac -Xlint -d out -sourcepath src src/cli/App.java src/gui/App.java
 cp src/icon.png src/*.properties out
 
 jar cfm dumback.jar src/MANIFEST.MF -C out .
+
+# Benchmarks and checks, in their own jar next to dumback.jar
+javac -Xlint -d out-test -cp out -sourcepath test test/core/*.java
+
+jar cf dumback-test.jar -C out-test .
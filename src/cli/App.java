@@ -1,8 +1,10 @@
 package cli;
 
+import core.ArchiveEntry;
 import core.ConfigEntries;
 import core.Core;
 import core.Date;
+import core.FileVersion;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -20,7 +22,8 @@ public class App {
 		System.out.println("1. Perform backup now");
 		System.out.println("2. Configure backup settings");
 		System.out.println("3. Check backup status");
-		System.out.println("4. Exit");
+		System.out.println("4. Restore files");
+		System.out.println("5. Exit");
 		System.out.print("Select an option: ");
 	}
 
@@ -43,6 +46,9 @@ public class App {
 				checkStatus();
 				break;
 			case 4:
+				restore();
+				break;
+			case 5:
 				System.out.println("\nExiting...");
 				sc.close();
 				return;
@@ -106,7 +112,8 @@ public class App {
 						destPath.isEmpty() ? cfg.destPath : Path.of(destPath),
 						freqDays,
 						keepDays,
-						dirs));
+						dirs,
+						cfg.options));
 		} catch (IllegalArgumentException e) {
 			System.out.println("Invalid setting, try again: " + e.getMessage());
 		}
@@ -141,6 +148,14 @@ public class App {
 		else
 			System.out.println("(None configured)");
 
+		for (ConfigEntries job : core.getJobs()) {
+			if (job.isMain())
+				continue;
+			System.out.printf("%nJob '%s': %s, last backup: %s, %s%n", job.name, job.destPath,
+					(job.lastBackup != null) ? job.lastBackup : "Never",
+					job.isAutomatic() ? "automatic" : "manual");
+		}
+
 		System.out.println("\nVerifying existing backups...");
 		Map<Path,Boolean> result = core.checkIntegrity();
 		if (result != null)
@@ -150,6 +165,58 @@ public class App {
 			});
 	}
 
+	private static void restore() {
+		List<Path> backups = core.listBackups();
+		if (backups.isEmpty()) {
+			System.out.println("\nNo backups to restore from.");
+			return;
+		}
+
+		System.out.println("\n==== Restore files ====\n");
+		for (int i = 0; i < backups.size(); i++)
+			System.out.printf("%d. %s%n", i + 1, backups.get(i).getFileName());
+
+		System.out.print("\nBackup number (blank for the newest one with the file): ");
+		String choice = sc.nextLine().trim();
+		Path archive;
+		String path;
+		if (choice.isEmpty()) {
+			System.out.print("Path in the backup, as in 'dir/file': ");
+			path = sc.nextLine();
+			archive = core.findNewestBackup(path);
+			if (archive == null) {
+				System.out.println("Not found in any backup.");
+				return;
+			}
+			for (FileVersion v : core.findVersions(path))
+				System.out.printf("%s  %12d  %tF %<tR  %s%n", v.archive.getFileName(), v.size, v.mtime, v.name);
+			System.out.printf("Found in %s%n", archive.getFileName());
+		} else {
+			try {
+				archive = backups.get(Integer.parseInt(choice) - 1);
+			} catch (NumberFormatException | IndexOutOfBoundsException e) {
+				System.out.println("Invalid backup number.");
+				return;
+			}
+			System.out.print("Path in the backup (blank for everything, ? to list): ");
+			path = sc.nextLine();
+			if (path.trim().equals("?")) {
+				List<ArchiveEntry> entries = core.listBackup(archive);
+				if (entries != null)
+					for (ArchiveEntry e : entries)
+						System.out.printf("%12d  %s%n", e.size, e.name);
+				System.out.print("Path in the backup (blank for everything): ");
+				path = sc.nextLine();
+			}
+		}
+
+		System.out.print("Restore into directory: ");
+		String target = sc.nextLine();
+		if (target.isEmpty())
+			return;
+		core.restore(archive, path, Path.of(target));
+	}
+
 	public static void main(String args[]) {
 		if (args.length > 0) {
 			System.err.println("Usage: This program does not accept arguments.");
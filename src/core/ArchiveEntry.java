@@ -0,0 +1,19 @@
+package core;
+
+/* A file in a backup, as listed by the central directory of its archive */
+public class ArchiveEntry {
+	public final String name;
+	public final long size;
+	public final long mtime;
+
+	ArchiveEntry(String name, long size, long mtime) {
+		this.name = name;
+		this.size = size;
+		this.mtime = mtime;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
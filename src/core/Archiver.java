@@ -0,0 +1,403 @@
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Compresses files on a pool of worker threads and hands the results, in
+ * the order they were added, to a single ZipWriter.  Files larger than
+ * CHUNK_SIZE are split in chunks compressed independently (each one primed
+ * with the previous 32 KiB as dictionary) and joined in one DEFLATE stream.
+ *
+ * Files that do not compress are stored: those with an extension in
+ * storeExtensions, and those whose first SAMPLE_SIZE bytes do not shrink
+ * by MIN_SAVING percent at the fastest level.  A file of a single chunk
+ * becomes a STORED entry; a larger one is written with DEFLATE level 0
+ * (stored blocks), as its CRC is only known after the local header.
+ */
+class Archiver implements Closeable {
+	static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int DICT_SIZE = 32 * 1024;
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	private static final int MIN_SAMPLE = 512;
+	private static final int MIN_SAVING = 10;
+	private static final int OUTPUT_SIZE = CHUNK_SIZE + DICT_SIZE + 64;
+
+	/* Per thread, the pool threads and the one adding files */
+	private static final ThreadLocal<ByteBuffer> input =
+		ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHUNK_SIZE + DICT_SIZE));
+	private static final ThreadLocal<Deflater[]> deflaters = ThreadLocal.withInitial(() -> new Deflater[10]);
+	private static final ThreadLocal<byte[]> sampleOutput = ThreadLocal.withInitial(() -> new byte[SAMPLE_SIZE]);
+
+	interface Listener {
+		void archived(String name, long size, long mtime, long crc) throws IOException;
+
+		/* The file could not be read, nothing of it was written */
+		default void failed(String name, IOException e) {}
+	}
+
+	private static class Chunk {
+		Path path;
+		String name;
+		long mtime;
+		long fileSize; /* -1 when the whole file is a single chunk */
+		int index;
+		boolean last;
+		int level; /* zero stores the data */
+		boolean sample; /* whether to check if it compresses before */
+
+		IOException error; /* reading the file */
+		int method;
+		long crc;
+		long rawLen;
+		byte data[];
+		int len;
+	}
+
+	private final ZipWriter zip;
+	private final int level;
+	private final Set<String> storeExtensions;
+	private final Listener listener;
+	private final Metrics metrics;
+	private final Throttle throttle;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>(); /* of written chunks, for reuse */
+
+	private long entryCrc;
+	private long entrySize;
+	private boolean skipping; /* chunks of a file whose first one failed */
+
+	/* A null storeExtensions compresses every file, without sampling */
+	Archiver(ZipWriter zip, int threads, int level, Set<String> storeExtensions,
+			Listener listener, Metrics metrics, Throttle throttle) {
+		this.zip = zip;
+		this.level = level;
+		this.storeExtensions = storeExtensions;
+		this.listener = listener;
+		this.metrics = metrics;
+		this.throttle = throttle;
+		this.maxPending = threads * 4;
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "dumback-compress");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	void add(Path path, String name, long size, long mtime) throws IOException {
+		long chunks = size <= CHUNK_SIZE ? 1 : (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+		int fileLevel = level;
+		boolean sample = false;
+		if (storeExtensions != null && level > 0) {
+			if (storeExtensions.contains(extension(name)))
+				fileLevel = 0;
+			else if (chunks == 1)
+				sample = true;
+			else {
+				try {
+					if (!compressible(readStart(path)))
+						fileLevel = 0;
+				} catch (IOException e) {
+					listener.failed(name, e);
+					return;
+				}
+			}
+		}
+
+		for (long i = 0; i < chunks; i++) {
+			Chunk c = new Chunk();
+			c.path = path;
+			c.name = name;
+			c.mtime = mtime;
+			c.fileSize = chunks == 1 ? -1 : size;
+			c.index = (int)i;
+			c.last = i == chunks - 1;
+			c.level = fileLevel;
+			c.sample = sample;
+			submit(c);
+		}
+	}
+
+	/* Waits for the pending chunks, the ZipWriter is not finished */
+	void finish() throws IOException {
+		while (!pending.isEmpty())
+			write(pending.removeFirst());
+	}
+
+	@Override
+	public void close() {
+		for (Future<Chunk> f : pending)
+			f.cancel(true);
+		pending.clear();
+		pool.shutdownNow();
+	}
+
+	private void submit(Chunk c) throws IOException {
+		pending.addLast(pool.submit(() -> compress(c)));
+		while (pending.size() > maxPending)
+			write(pending.removeFirst());
+	}
+
+	private void write(Future<Chunk> f) throws IOException {
+		Chunk c;
+		try {
+			c = f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException(cause);
+		}
+
+		if (c.error != null && (c.fileSize < 0 || c.index == 0)) {
+			skipping = c.fileSize >= 0 && !c.last;
+			listener.failed(c.name, c.error);
+			return;
+		}
+		if (skipping) {
+			skipping = !c.last;
+			if (c.data != null)
+				buffers.add(c.data);
+			return;
+		}
+		if (c.error != null)
+			throw c.error; /* the entry is partly written */
+
+		if (c.fileSize < 0) {
+			zip.writeEntry(c.name, c.mtime, c.method, c.crc, c.rawLen, c.data, c.len);
+			buffers.add(c.data);
+			listener.archived(c.name, c.rawLen, c.mtime, c.crc);
+			return;
+		}
+
+		if (c.index == 0) {
+			zip.beginEntry(c.name, c.mtime, ZipWriter.DEFLATED, c.fileSize);
+			entryCrc = c.crc;
+			entrySize = 0;
+		} else {
+			entryCrc = crc32Combine(entryCrc, c.crc, c.rawLen);
+		}
+		entrySize += c.rawLen;
+		zip.writeData(c.data, 0, c.len);
+		buffers.add(c.data);
+		if (c.last) {
+			zip.endEntry(entryCrc, entrySize);
+			listener.archived(c.name, entrySize, c.mtime, entryCrc);
+		}
+	}
+
+	private Chunk compress(Chunk c) throws IOException {
+		throttle.enter();
+		try {
+			return compressChunk(c);
+		} finally {
+			throttle.exit();
+		}
+	}
+
+	private Chunk compressChunk(Chunk c) throws IOException {
+		ByteBuffer in = input.get().clear();
+		int dictLen = 0;
+
+		try (FileChannel ch = FileChannel.open(c.path, StandardOpenOption.READ)) {
+			long start = 0;
+			if (c.fileSize >= 0) {
+				start = (long)c.index * CHUNK_SIZE;
+				long end = c.last ? c.fileSize : start + CHUNK_SIZE;
+				dictLen = c.level > 0 ? (int)Math.min(start, DICT_SIZE) : 0;
+				in.limit((int)(end - start) + dictLen);
+			}
+			throttle.read(in.remaining());
+			int k;
+			while (in.hasRemaining() && (k = ch.read(in, start - dictLen + in.position())) > 0);
+		} catch (IOException e) {
+			c.error = e;
+			return c;
+		}
+		in.flip();
+		dictLen = Math.min(dictLen, in.limit());
+		long start = System.nanoTime();
+		deflate(c, in, dictLen);
+		metrics.compressed(System.nanoTime() - start);
+		metrics.read(c.rawLen);
+		return c;
+	}
+
+	/* Sets the CRC and the data to write of the chunk read into in, after dictLen bytes of dictionary */
+	private void deflate(Chunk c, ByteBuffer in, int dictLen) {
+		int len = in.limit() - dictLen;
+		ByteBuffer data = in.duplicate().position(dictLen);
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		c.crc = crc.getValue();
+		c.rawLen = len;
+		c.method = ZipWriter.DEFLATED;
+
+		if (c.fileSize < 0) {
+			if (c.sample && !compressible(in))
+				c.level = 0;
+			if (c.level == 0) {
+				store(c, in);
+				return;
+			}
+		}
+
+		Deflater d = deflater(c.level);
+		if (dictLen > 0)
+			d.setDictionary(in.duplicate().limit(dictLen));
+		d.setInput(data);
+		if (c.last)
+			d.finish();
+
+		byte out[] = takeBuffer();
+		int n = 0;
+		while (true) {
+			if (n == out.length)
+				out = Arrays.copyOf(out, out.length * 2);
+			if (c.last) {
+				n += d.deflate(out, n, out.length - n);
+				if (d.finished())
+					break;
+			} else {
+				n += d.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+				if (n < out.length)
+					break;
+			}
+		}
+		c.data = out;
+		c.len = n;
+
+		if (c.fileSize < 0 && c.len >= len) {
+			buffers.add(out);
+			store(c, in);
+		}
+	}
+
+	private void store(Chunk c, ByteBuffer in) {
+		c.method = ZipWriter.STORED;
+		c.len = in.limit();
+		c.data = takeBuffer();
+		if (c.data.length < c.len)
+			c.data = new byte[c.len];
+		in.get(0, c.data, 0, c.len);
+	}
+
+	private byte[] takeBuffer() {
+		byte buf[] = buffers.poll();
+		return buf != null ? buf : new byte[OUTPUT_SIZE];
+	}
+
+	/* Whether the start of data shrinks by MIN_SAVING percent at the fastest level */
+	private static boolean compressible(ByteBuffer data) {
+		int len = Math.min(data.limit(), SAMPLE_SIZE);
+		if (len < MIN_SAMPLE)
+			return true;
+
+		int limit = len - len * MIN_SAVING / 100;
+		byte out[] = sampleOutput.get();
+		int n = 0;
+		Deflater d = deflater(Deflater.BEST_SPEED);
+		d.setInput(data.duplicate().position(0).limit(len));
+		d.finish();
+		while (!d.finished()) {
+			if (n == limit)
+				return false;
+			n += d.deflate(out, n, limit - n);
+		}
+		return true;
+	}
+
+	/* A reset raw Deflater of this thread */
+	private static Deflater deflater(int level) {
+		Deflater ds[] = deflaters.get();
+		if (ds[level] == null)
+			ds[level] = new Deflater(level, true);
+		ds[level].reset();
+		return ds[level];
+	}
+
+	private ByteBuffer readStart(Path path) throws IOException {
+		ByteBuffer buf = input.get().clear().limit(SAMPLE_SIZE);
+		throttle.read(SAMPLE_SIZE);
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (buf.hasRemaining() && ch.read(buf) > 0);
+		}
+		return buf.flip();
+	}
+
+	private static String extension(String name) {
+		int dot = name.lastIndexOf('.');
+		int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+		return dot > slash ? name.substring(dot + 1).toLowerCase() : "";
+	}
+
+	/* Same as zlib's crc32_combine() */
+	static long crc32Combine(long crc1, long crc2, long len2) {
+		if (len2 <= 0)
+			return crc1;
+
+		int even[] = new int[32];
+		int odd[] = new int[32];
+
+		odd[0] = 0xedb88320;
+		int row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+
+		int c1 = (int)crc1;
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((len2 & 1) != 0)
+				c1 = gf2MatrixTimes(even, c1);
+			len2 >>= 1;
+			if (len2 == 0)
+				break;
+			gf2MatrixSquare(odd, even);
+			if ((len2 & 1) != 0)
+				c1 = gf2MatrixTimes(odd, c1);
+			len2 >>= 1;
+		} while (len2 != 0);
+
+		return (c1 ^ crc2) & 0xFFFFFFFFL;
+	}
+
+	private static int gf2MatrixTimes(int mat[], int vec) {
+		int sum = 0;
+		for (int i = 0; vec != 0; i++, vec >>>= 1)
+			if ((vec & 1) != 0)
+				sum ^= mat[i];
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(int square[], int mat[]) {
+		for (int n = 0; n < 32; n++)
+			square[n] = gf2MatrixTimes(mat, mat[n]);
+	}
+}
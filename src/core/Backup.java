@@ -1,42 +1,76 @@
 package core;
 
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import static core.I18n.i18n;
 
 class Backup {
-	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
-	private static final String ARCHIVE_PREFIX = "dumback_";
+	static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+	static final String ARCHIVE_PREFIX = "dumback_";
 	private static final String ARCHIVE_SUFFIX = ".zip";
+	private static final String INCREMENTAL_TAG = ".inc";
+	static final String DELETED_ENTRY = ".dumback-deleted";
+	private static final int DELETE_THREADS = 4; /* deletes mostly wait for the file system */
+
+	/* Where zipFiles() sends the files to write, an Archiver or a VolumeSet */
+	private interface FileSink {
+		void add(Path path, String name, long size, long mtime) throws IOException;
+	}
 
 	private Log log;
-	private MessageDigest md;
+	private final VerifyCache verifyCache;
+	private final Throttle throttle;
 
-	Backup(Log log) {
+	Backup(Log log, Path verifyCachePath, Throttle throttle) {
 		this.log = log;
+		this.verifyCache = new VerifyCache(verifyCachePath);
+		this.throttle = throttle;
 
 		try {
-			md = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			log.error("%s", e);
-			throw new RuntimeException(e);
+			verifyCache.load();
+		} catch (IOException e) {
+			log.error(i18n("error.Invalid_verify_cache"), e.getMessage());
 		}
 	}
 
-	void create(Path dest, List<Path> sourceDirs) throws IOException {
+	/*
+	 * Returns how many files could not be read and were left out.  A
+	 * cancelled backup throws a CancellationException and leaves nothing.
+	 */
+	int create(Path dest, List<Path> sourceDirs, Options options,
+			Metrics metrics, Progress progress) throws IOException {
 		if (!Files.exists(dest)) {
 			log.debug("Creating destination directory: '%s'", dest);
 			Files.createDirectories(dest);
@@ -49,143 +83,632 @@ class Backup {
 			if (dest.startsWith(dir))
 				throw new IOException(i18n("error.Dest_is_subdir", dir));
 
+		/* The checksum is computed on the way to the disk, not by reading the archive again */
 		String timestamp = LocalDateTime.now().format(TIMESTAMP_FORMAT);
-		Path zipPath = dest.resolve(ARCHIVE_PREFIX + timestamp + ARCHIVE_SUFFIX);
-		Path md5Path = dest.resolve(ARCHIVE_PREFIX + timestamp + ".md5");
+		Path archive;
+		Checksum sum = new Checksum(options.checksum);
+		AtomicInteger skipped = new AtomicInteger();
+		SourceScanner.ErrorHandler onError = (path, name, e) -> {
+			skipped.incrementAndGet();
+			metrics.skipped();
+			log.error(i18n("error.Skipped_file"), path, e.toString());
+		};
+		if (options.format == Options.Format.DEDUP) {
+			archive = createSnapshot(dest, timestamp, sourceDirs, options, sum, onError, metrics, progress);
+			Checksum.writeSidecar(archive, sum.algorithm, toHex(sum.digest()));
+		} else if (options.format == Options.Format.LINK) {
+			Path snapshot = createLinkSnapshot(dest, timestamp, sourceDirs, options, sum, onError, metrics, progress);
+			Checksum.writeSidecar(snapshot, sum.algorithm, toHex(sum.digest()));
+			archive = LinkSnapshot.listPath(snapshot); /* the copies are counted as they are made */
+		} else if (options.volumeMB > 0) {
+			createVolumes(dest, timestamp, sourceDirs, options, onError, metrics, progress);
+			archive = null; /* the volumes are counted in the metrics as they are completed */
+		} else {
+			TreeHash tree = options.treeBlockMB > 0
+				? new TreeHash(options.checksum, options.treeBlockMB * 1024 * 1024)
+				: null;
+			archive = createZip(dest, timestamp, sourceDirs, options, sum, tree, onError, metrics, progress);
+			if (tree != null)
+				metrics.hashed(tree.hashNanos());
+		}
+		metrics.hashed(sum.wrapNanos());
+		if (archive != null)
+			metrics.written(Files.size(archive));
+		progress.finish();
+		updateCatalog(dest);
+
+		log.debug("The archive and checksum have been created");
+		log.debug("END Creating archive");
+		return skipped.get();
+	}
+
+	private Path createZip(Path dest, String timestamp, List<Path> sourceDirs,
+			Options options, Checksum sum, TreeHash tree, SourceScanner.ErrorHandler onError,
+			Metrics metrics, Progress progress) throws IOException {
+		Manifest previous = options.fullEvery > 1 ? readManifest(dest, options.fullEvery) : null;
+		Manifest manifest = new Manifest();
+		Queue<String> unreadable = new ConcurrentLinkedQueue<>();
+
+		String settings = options.checksum + "," + options.treeBlockMB;
+		String base = ARCHIVE_PREFIX + timestamp + (previous != null ? INCREMENTAL_TAG : "");
+		Checkpoint found = resumable(dest, settings, previous != null);
+		Checkpoint checkpoint = found != null ? found : new Checkpoint(dest.resolve(base + ARCHIVE_SUFFIX), settings);
+		Map<String,ZipWriter.Entry> resumed = new HashMap<>();
+		for (ZipWriter.Entry e : checkpoint.entries)
+			resumed.put(e.name(), e);
+		if (found != null)
+			log.info(i18n("info.Resuming_backup"), found.archive.getFileName(), resumed.size());
+		checkpoint.write();
+		Path zipPath = checkpoint.archive;
+		Path partPath = Checkpoint.partPath(zipPath);
 
-		log.debug("Creating archive: '%s'", zipPath);
+		log.debug("Creating %s archive: '%s'", previous != null ? "incremental" : "full", zipPath);
 
-		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zipPath))) {
-			for (Path dir : sourceDirs)
-				zipDir(zos, dir);
+		FileChannel ch = FileChannel.open(partPath, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ZipWriter zip = openPart(ch, checkpoint, sum, tree, throttle);
+
+		Archiver.Listener listener = new Archiver.Listener() {
+			private long lastCheckpoint = System.nanoTime();
+
+			@Override
+			public void archived(String name, long size, long mtime, long crc) throws IOException {
+				manifest.put(name, size, mtime, crc);
+				progress.done(size);
+				if (System.nanoTime() - lastCheckpoint >= Checkpoint.INTERVAL_NANOS) {
+					zip.flush();
+					ch.force(false);
+					List<ZipWriter.Entry> entries = zip.entries();
+					checkpoint.commit(entries.subList(checkpoint.entries.size(), entries.size()), zip.size());
+					lastCheckpoint = System.nanoTime();
+				}
+			}
+
+			@Override
+			public void failed(String name, IOException e) {
+				onError.failed(Path.of(name), name, e);
+				unreadable.add(name);
+				progress.done(0);
+			}
+		};
+
+		try (zip; Archiver archiver = new Archiver(zip, options.threadCount(),
+						options.compressionLevel, options.storeExtensions, listener, metrics, throttle);
+				SourceScanner scanner = new SourceScanner(sourceDirs, options.scanThreads, options.filter, (path, name, e) -> {
+					onError.failed(path, name, e);
+					unreadable.add(name);
+				})) {
+			progress.scanning(scanner);
+			zipFiles(archiver::add, scanner, previous, manifest, resumed, metrics, progress);
+			archiver.finish();
+			zip.drop(resumed.values()); /* changed or gone since they were written */
+			if (previous != null) {
+				for (String name : unreadable)
+					keepPrevious(previous, manifest, name);
+				writeDeleted(zip, previous, manifest);
+			}
+			zip.finish();
+			ch.force(true);
+		} catch (CancellationException e) {
+			/* After any other error the part file is kept, to be resumed */
+			checkpoint.delete();
+			throw e;
 		}
 
-		Files.writeString(md5Path,
-				byteToHex(computeMd5(md, zipPath))
-				.append("  ")
-				.append(zipPath.getFileName())
-				.append(System.lineSeparator())
-				.toString());
+		if (tree != null)
+			tree.write(zipPath);
+		Checksum.writeSidecar(zipPath, sum.algorithm, toHex(sum.digest()));
+		Files.move(partPath, zipPath, StandardCopyOption.ATOMIC_MOVE);
+		checkpoint.delete();
 
-		log.debug("The archive and checksum have been created");
-		log.debug("END Creating archive");
+		if (options.fullEvery > 1) {
+			manifest.lastArchive = zipPath.getFileName().toString();
+			manifest.chainLength = previous != null ? previous.chainLength + 1 : 1;
+			manifest.write(dest.resolve(Manifest.FILENAME));
+		}
+		return zipPath;
+	}
+
+	/* A ZIP backup split into volumes, see VolumeSet */
+	private void createVolumes(Path dest, String timestamp, List<Path> sourceDirs,
+			Options options, SourceScanner.ErrorHandler onError,
+			Metrics metrics, Progress progress) throws IOException {
+		Manifest previous = options.fullEvery > 1 ? readManifest(dest, options.fullEvery) : null;
+		Manifest manifest = new Manifest();
+		Queue<String> unreadable = new ConcurrentLinkedQueue<>();
+		resumable(dest, null, false); /* deletes unfinished backups, a volume set does not go on with them */
+
+		String base = ARCHIVE_PREFIX + timestamp + (previous != null ? INCREMENTAL_TAG : "");
+		log.debug("Creating %s volumes: '%s'", previous != null ? "incremental" : "full", base);
+
+		/* Called by the workers of the volumes */
+		Archiver.Listener listener = new Archiver.Listener() {
+			@Override
+			public void archived(String name, long size, long mtime, long crc) {
+				manifest.put(name, size, mtime, crc);
+				progress.done(size);
+			}
+
+			@Override
+			public void failed(String name, IOException e) {
+				onError.failed(Path.of(name), name, e);
+				unreadable.add(name);
+				progress.done(0);
+			}
+		};
+
+		List<Path> volumes;
+		try (VolumeSet set = new VolumeSet(dest, base, options, listener, metrics, throttle);
+				SourceScanner scanner = new SourceScanner(sourceDirs, options.scanThreads, options.filter, (path, name, e) -> {
+					onError.failed(path, name, e);
+					unreadable.add(name);
+				})) {
+			progress.scanning(scanner);
+			zipFiles(set::add, scanner, previous, manifest, new HashMap<>(), metrics, progress);
+			set.awaitFiles();
+			if (previous != null) {
+				for (String name : unreadable)
+					keepPrevious(previous, manifest, name);
+				writeDeleted(set.lastZip(), previous, manifest);
+			}
+			volumes = set.complete();
+		}
+		log.debug("%d volume(s) written", volumes.size());
+
+		if (options.fullEvery > 1) {
+			manifest.lastArchive = volumes.get(0).getFileName().toString();
+			manifest.chainLength = previous != null ? previous.chainLength + 1 : 1;
+			manifest.write(dest.resolve(Manifest.FILENAME));
+		}
 	}
 
-	Map<Path,Boolean> checkIntegrity(Path dest) throws IOException {
+	private Path createSnapshot(Path dest, String timestamp, List<Path> sourceDirs,
+			Options options, Checksum sum, SourceScanner.ErrorHandler onError,
+			Metrics metrics, Progress progress) throws IOException {
+		Path snapPath = dest.resolve(ARCHIVE_PREFIX + timestamp + ChunkStore.SNAPSHOT_SUFFIX);
+		Path previous;
+		try (Stream<Path> list = Files.list(dest)) {
+			previous = list
+				.filter(path -> isBackup(path) && isSnapshot(path))
+				.max(Comparator.naturalOrder())
+				.orElse(null);
+		}
+
+		log.debug("Creating snapshot: '%s'", snapPath);
+
+		new ChunkStore(dest, log).createSnapshot(snapPath, sourceDirs, previous,
+				options.threadCount(), options.scanThreads, options.filter, sum, onError, metrics, progress, throttle);
+		return snapPath;
+	}
+
+	private Path createLinkSnapshot(Path dest, String timestamp, List<Path> sourceDirs,
+			Options options, Checksum sum, SourceScanner.ErrorHandler onError,
+			Metrics metrics, Progress progress) throws IOException {
+		Path snapshot = dest.resolve(ARCHIVE_PREFIX + timestamp + LinkSnapshot.SUFFIX);
+		Path previous;
+		try (Stream<Path> list = Files.list(dest)) {
+			previous = list
+				.filter(path -> isBackup(path) && isLinkSnapshot(path))
+				.max(Comparator.naturalOrder())
+				.orElse(null);
+		}
+
+		log.debug("Creating link snapshot: '%s'", snapshot);
+
+		new LinkSnapshot(log).create(snapshot, sourceDirs, previous, options,
+				sum, onError, metrics, progress, throttle);
+		return snapshot;
+	}
+
+	Map<Path,Boolean> checkIntegrity(Path dest, Options options, Metrics metrics) throws IOException {
 		Map<Path,Boolean> results = new HashMap<>();
-		Files.list(dest)
-		.filter(path -> {
-			String s = path.getFileName().toString();
-			return s.startsWith(ARCHIVE_PREFIX) && s.endsWith(ARCHIVE_SUFFIX);
-		})
-		.sorted()
-		.forEach(zip -> {
-			String zipName = zip.getFileName().toString();
-			Path md5 = dest.resolve(zipName.replace(".zip", ".md5"));
-			try {
-				String parts[] = Files.readString(md5).split("  ");
-				String sum = byteToHex(computeMd5(md, zip)).toString();
-				log.debug("md5sum: %s %s %s", zipName, sum, parts[0]);
-				boolean valid = parts[0].equals(sum);
-				results.put(zip, valid);
-			} catch (IOException e) {
-				log.error(i18n("error.Not_a_valid_md5"),
-						zip, e.getMessage());
-				results.put(zip, false);
+		ChunkStore store = new ChunkStore(dest, log);
+		Set<String> verifiedChunks = ConcurrentHashMap.newKeySet();
+		Set<Object> verifiedFiles = ConcurrentHashMap.newKeySet();
+		List<Path> backups;
+		try (Stream<Path> list = Files.list(dest)) {
+			backups = list.filter(Backup::isBackup).sorted().collect(Collectors.toList());
+		}
+
+		/* The volumes of a set are verified side by side, and make one result */
+		try (Verifier verifier = new Verifier(options.verifyThreadCount(), options.verifyIo, metrics)) {
+			Map<Path,Future<Boolean>> pending = new LinkedHashMap<>();
+			for (Path zip : backups)
+				pending.put(zip, verifier.submit(() -> verify(zip, verifier, store, verifiedChunks, verifiedFiles, options)));
+			Map<Path,Integer> lastVolume = new HashMap<>();
+			for (Map.Entry<Path,Future<Boolean>> e : pending.entrySet()) {
+				Path backup = e.getKey();
+				boolean valid = Verifier.get(e.getValue());
+				int volume = VolumeSet.number(backup);
+				if (volume == 0) {
+					results.put(backup, valid);
+					continue;
+				}
+				Path set = VolumeSet.setPath(backup);
+				int expected = lastVolume.getOrDefault(set, 0) + 1;
+				if (volume != expected) {
+					log.error(i18n("error.Missing_volume"), expected, set);
+					valid = false;
+				}
+				lastVolume.put(set, volume);
+				results.merge(set, valid, Boolean::logicalAnd);
 			}
-		});
+		}
+
+		try {
+			verifyCache.save();
+		} catch (IOException e) {
+			log.error(i18n("error.Invalid_verify_cache"), e.getMessage());
+		}
 		return results;
 	}
 
-	void deleteOld(Path dest, int keepDays) {
-		if (!Files.isDirectory(dest))
+	private boolean verify(Path zip, Verifier verifier, ChunkStore store,
+			Set<String> verifiedChunks, Set<Object> verifiedFiles, Options options) {
+		String zipName = zip.getFileName().toString();
+		/* The checksum of a link snapshot is that of its list of files */
+		Path hashed = isLinkSnapshot(zip) ? LinkSnapshot.listPath(zip) : zip;
+		boolean cached = !isSnapshot(zip) && !isLinkSnapshot(zip); /* see VerifyCache */
+		try {
+			Checksum.Expected expected = Checksum.readSidecar(zip);
+			BasicFileAttributes attrs = Files.readAttributes(hashed, BasicFileAttributes.class);
+			if (cached && expected.hex.equals(verifyCache.lookup(zip, attrs, options.reverifyDays * 86400000L))) {
+				log.debug("Unchanged since last verified: '%s'", zipName);
+				return true;
+			}
+
+			boolean valid;
+			boolean complete = true;
+			if (hashed == zip && !isSnapshot(zip) && Files.exists(TreeHash.path(zip))) {
+				List<long[]> damaged = TreeHash.read(zip).verify(zip, verifier, options.verifySample);
+				log.debug("Tree hash: %s, %d%% of the blocks, %d damaged ranges",
+						zipName, options.verifySample, damaged.size());
+				reportDamaged(zip, damaged);
+				valid = damaged.isEmpty();
+				complete = options.verifySample == 100;
+			} else {
+				String sum = toHex(verifier.checksum(hashed, expected.algorithm));
+				log.debug("%s: %s %s %s", expected.algorithm, zipName, sum, expected.hex);
+				valid = expected.hex.equals(sum);
+				if (valid && isSnapshot(zip))
+					valid = store.verify(zip, verifiedChunks, verifier);
+				if (valid && isLinkSnapshot(zip))
+					valid = new LinkSnapshot(log).verify(zip, verifiedFiles, verifier);
+			}
+
+			if (!valid)
+				verifyCache.remove(zip);
+			else if (complete && cached)
+				verifyCache.put(zip, attrs, expected.hex);
+			return valid;
+		} catch (IOException e) {
+			verifyCache.remove(zip);
+			log.error(i18n("error.Not_a_valid_md5"),
+					zip, e.getMessage());
+			return false;
+		}
+	}
+
+	/* Deletes the backups the retention rules do not keep, see Retention */
+	void deleteOld(Path dest, int keepDays, Options options) {
+		Retention retention = new Retention(keepDays, options);
+		if (!retention.isSet() || !Files.isDirectory(dest))
 			return;
 
 		log.debug("Checking for old backups in: '%s'", dest);
 
-		Date today = new Date();
-		List<Path> toDelete = new ArrayList<>();
+		try (Stream<Path> list = Files.list(dest)) {
+			List<Path> archives = list
+				.filter(Backup::isBackup)
+				.sorted()
+				.collect(Collectors.toList());
 
-		try {
-			Files.list(dest)
-			.filter(path -> {
-				String name = path.getFileName().toString();
-				return name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX);
-			})
-			.forEach(path -> {
-				String name = path.getFileName().toString();
-				int ARCHIVE_PREFIXLen = ARCHIVE_PREFIX.length();
-				int underscore = name.indexOf('_', ARCHIVE_PREFIXLen);
-				if (underscore == -1) {
-					log.error(i18n("error.Invalid_backup_timestamp"), name);
-					return;
-				}
-				String datePart = name.substring(ARCHIVE_PREFIXLen, underscore);
-				try {
-					Date fileDate = new Date(datePart);
-					if (fileDate.daysBetween(today) > keepDays) {
-						toDelete.add(path);
-						Path md5 = dest.resolve(name.replace(ARCHIVE_SUFFIX, ".md5"));
-						if (Files.exists(md5))
-							toDelete.add(md5);
+			/* The volumes of a set are one point in time */
+			List<List<Path>> points = new ArrayList<>();
+			for (Path path : archives) {
+				if (points.isEmpty() || VolumeSet.number(path) <= 1)
+					points.add(new ArrayList<>());
+				points.get(points.size() - 1).add(path);
+			}
+
+			Retention.Plan plan = retention.plan(points, path -> !isIncremental(path), LocalDateTime.now());
+			for (Map.Entry<Path,String> e : plan.keep.entrySet()) {
+				if (Retention.timestamp(e.getKey()) == null)
+					log.error(i18n("error.Invalid_backup_timestamp"), e.getKey().getFileName());
+				else if (options.retentionDryRun)
+					log.info(i18n("info.Retention_keep"), e.getKey().getFileName(), e.getValue());
+				else
+					log.debug("Keeping '%s': %s", e.getKey().getFileName(), e.getValue());
+			}
+			if (options.retentionDryRun) {
+				for (Path path : plan.delete)
+					log.info(i18n("info.Retention_delete"), path.getFileName());
+				return;
+			}
+			if (plan.delete.isEmpty())
+				return;
+
+			deleteAll(plan.delete);
+			updateCatalog(dest);
+			if (plan.delete.stream().anyMatch(Backup::isSnapshot)) {
+				List<Path> snapshots = archives.stream()
+					.filter(path -> isSnapshot(path) && Files.exists(path))
+					.collect(Collectors.toList());
+				new ChunkStore(dest, log).collectGarbage(snapshots);
+			}
+		} catch (IOException e) {
+			log.error(i18n("error.Failed_to_access"), dest, e.getMessage());
+		}
+	}
+
+	/* Each backup and then its sidecars, DELETE_THREADS backups at a time */
+	private void deleteAll(List<Path> backups) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(DELETE_THREADS, backups.size()), r -> {
+			Thread t = new Thread(r, "dumback-delete");
+			t.setDaemon(true);
+			return t;
+		});
+		for (Path backup : backups) {
+			pool.execute(() -> {
+				List<Path> files = new ArrayList<>();
+				files.add(backup);
+				files.addAll(sidecars(backup));
+				for (Path file : files) {
+					try {
+						if (isLinkSnapshot(file))
+							LinkSnapshot.deleteTree(file);
+						else if (!Files.deleteIfExists(file))
+							continue;
+						log.debug("Deleted old file: '%s'", file);
+					} catch (IOException e) {
+						log.error(i18n("error.Failed_to_delete"), file, e.getMessage());
 					}
-				} catch (Exception e) {
-					log.error(i18n("error.Invalid_backup_date"), datePart, name);
 				}
 			});
+		}
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
 
-			for (Path file : toDelete) {
-				try {
-					Files.deleteIfExists(file);
-					log.debug("Deleted old file: '%s'", file);
-				} catch (IOException e) {
-					log.error(i18n("error.Failed_to_delete"), file, e.getMessage());
-				}
-			}
+	/* Brings the catalog of dest up to date; a catalog that cannot be is rebuilt when next used */
+	private void updateCatalog(Path dest) {
+		try {
+			Catalog.open(dest, log);
 		} catch (IOException e) {
-			log.error(i18n("error.Failed_to_access"), dest, e.getMessage());
+			log.error(i18n("error.Failed_to_access"), dest.resolve(Catalog.FILENAME), e.getMessage());
 		}
 	}
 
-	private void zipDir(ZipOutputStream zos, Path dir) throws IOException {
-		log.debug("Zipping '%s':", dir);
-		Path root = dir.getFileName();
+	static boolean isBackup(Path path) {
+		String name = path.getFileName().toString();
+		return name.startsWith(ARCHIVE_PREFIX)
+			&& (name.endsWith(ARCHIVE_SUFFIX) || name.endsWith(ChunkStore.SNAPSHOT_SUFFIX)
+				|| name.endsWith(LinkSnapshot.SUFFIX));
+	}
+
+	static boolean isLinkSnapshot(Path path) {
+		return path.getFileName().toString().endsWith(LinkSnapshot.SUFFIX);
+	}
+
+	static boolean isSnapshot(Path path) {
+		return path.getFileName().toString().endsWith(ChunkStore.SNAPSHOT_SUFFIX);
+	}
+
+	private static List<Path> sidecars(Path backup) {
+		List<Path> l = new ArrayList<>(Checksum.sidecars(backup));
+		l.add(TreeHash.path(backup));
+		return l;
+	}
+
+	/* Tells which entries of a ZIP archive the damaged ranges belong to */
+	private void reportDamaged(Path zip, List<long[]> damaged) {
+		if (damaged.isEmpty())
+			return;
+
+		ZipIndex index = null;
+		try (FileChannel ch = FileChannel.open(zip, StandardOpenOption.READ)) {
+			index = ZipIndex.read(ch);
+		} catch (IOException e) {
+			log.debug("No central directory in '%s': %s", zip, e.getMessage());
+		}
+
+		for (long range[] : damaged) {
+			log.error(i18n("error.Damaged_range"), zip, range[0], range[1]);
+			if (index == null)
+				continue;
+			if (range[1] > index.cdOffset)
+				log.error(i18n("error.Damaged_central_dir"), zip);
+			for (ZipIndex.Entry e : index.entriesIn(range[0], range[1]))
+				log.error(i18n("error.Damaged_entry"), zip, e.name);
+		}
+	}
+
+	static boolean isIncremental(Path archive) {
+		return VolumeSet.setPath(archive).getFileName().toString().endsWith(INCREMENTAL_TAG + ARCHIVE_SUFFIX);
+	}
+
+	/* The manifest to base an incremental backup on, null when a full one is due */
+	private Manifest readManifest(Path dest, int fullEvery) {
+		Path path = dest.resolve(Manifest.FILENAME);
+		if (!Files.exists(path))
+			return null;
+
 		try {
-			Files.walk(dir).forEach(path -> {
+			Manifest m = Manifest.read(path);
+			if (m.chainLength >= fullEvery)
+				return null;
+			if (!Files.exists(dest.resolve(m.lastArchive))) {
+				log.debug("Last archive of the manifest is gone: '%s'", m.lastArchive);
+				return null;
+			}
+			return m;
+		} catch (IOException e) {
+			log.error(i18n("error.Invalid_manifest"), path, e.getMessage());
+			return null;
+		}
+	}
+
+	private void zipFiles(FileSink sink, SourceScanner scanner, Manifest previous,
+			Manifest manifest, Map<String,ZipWriter.Entry> resumed,
+			Metrics metrics, Progress progress) throws IOException {
+		log.debug("Zipping:");
+		SourceScanner.Found found;
+		while ((found = scanner.next()) != null) {
+			progress.check();
+			metrics.scanned();
+			String f = found.name;
+			long size = found.attrs.size();
+			long mtime = found.attrs.lastModifiedTime().toMillis();
+
+			ZipWriter.Entry written = resumed.get(f);
+			if (written != null && written.size == size && written.mtime == mtime) {
+				resumed.remove(f);
+				manifest.put(f, size, mtime, written.crc);
+				progress.done(size);
+				continue;
+			}
+
+			Manifest.Entry old = previous != null ? previous.entries.get(f) : null;
+			if (old != null && old.size == size && old.mtime == mtime) {
+				manifest.put(f, size, mtime, old.crc);
+				progress.done(size);
+				continue;
+			}
+
+			log.debug(() -> "  " + f);
+			sink.add(found.path, f, size, mtime);
+		}
+		metrics.scanDone(scanner.walkEnd());
+		scanner.reportFiltered(log);
+	}
+
+	/*
+	 * The checkpoint of an unfinished ZIP backup made with the same settings,
+	 * to go on with, null if there is none.  Other unfinished ones are deleted,
+	 * all of them when settings is null.
+	 */
+	private Checkpoint resumable(Path dest, String settings, boolean incremental) throws IOException {
+		List<Path> parts;
+		try (Stream<Path> list = Files.list(dest)) {
+			parts = list
+				.filter(path -> path.getFileName().toString().startsWith(ARCHIVE_PREFIX)
+						&& path.getFileName().toString().endsWith(ARCHIVE_SUFFIX + Checkpoint.PART_SUFFIX))
+				.sorted(Comparator.reverseOrder())
+				.collect(Collectors.toList());
+		}
+
+		Checkpoint found = null;
+		for (Path part : parts) {
+			Path archive = Checkpoint.archiveOf(part);
+			if (found == null && isIncremental(archive) == incremental) {
 				try {
-					if (!Files.isDirectory(path)) {
-						Path par = dir.getParent();
-						if (par == null)
-							par = dir;
-						String f = par.relativize(path).toString();
-						log.debug("  %s", f);
-						zos.putNextEntry(new ZipEntry(f));
-						Files.copy(path, zos);
-						zos.closeEntry();
+					Checkpoint c = Checkpoint.read(archive);
+					if (c.settings.equals(settings) && Files.size(part) >= c.size) {
+						found = c;
+						continue;
 					}
 				} catch (IOException e) {
-					throw new RuntimeException(e);
+					log.debug("Not resuming '%s': %s", part, e.getMessage());
 				}
-			});
-		} catch (Exception e) {
-			throw new IOException(i18n("error.When_zipping", dir, e), e);
+			}
+			try {
+				new Checkpoint(archive, settings).delete();
+			} catch (IOException e) {
+				log.error(i18n("error.Failed_to_delete"), part, e.getMessage());
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * The writer of a part file, after what its checkpoint holds.  That part
+	 * is read again through the checksum and the tree hash, which cannot be
+	 * saved, and not written.
+	 */
+	private static ZipWriter openPart(FileChannel ch, Checkpoint checkpoint,
+			Checksum sum, TreeHash tree, Throttle throttle) throws IOException {
+		try {
+			long size = checkpoint.size;
+			ch.truncate(size).position(size);
+			OutputStream out = new FilterOutputStream(throttle.wrap(Channels.newOutputStream(ch))) {
+				private long skip = size;
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte b[], int off, int len) throws IOException {
+					int n = (int)Math.min(len, skip);
+					skip -= n;
+					if (len > n)
+						out.write(b, off + n, len - n);
+				}
+			};
+			if (tree != null)
+				out = tree.wrap(out);
+			BufferedOutputStream buffered = new BufferedOutputStream(sum.wrap(out), 1024 * 1024);
+
+			ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+			for (long pos = 0; pos < size; ) {
+				buf.clear().limit((int)Math.min(buf.capacity(), size - pos));
+				int n = ch.read(buf, pos);
+				if (n < 0)
+					throw new IOException("Part file shorter than its checkpoint");
+				buffered.write(buf.array(), 0, n);
+				pos += n;
+			}
+			return new ZipWriter(buffered, checkpoint.entries, size);
+		} catch (IOException e) {
+			ch.close();
+			throw e;
 		}
 	}
 
-	private static byte[] computeMd5(MessageDigest md, Path filePath) throws IOException {
-		byte buffer[] = new byte[1024 * 1024];
-		md.reset();
-		try (InputStream is = Files.newInputStream(filePath);
-				DigestInputStream dis = new DigestInputStream(is, md)) {
-			while (dis.read(buffer) != -1);
+	/*
+	 * A file or directory that could not be read is not deleted: its files
+	 * keep the version of the previous backup, in an archive of the chain.
+	 */
+	private static void keepPrevious(Manifest previous, Manifest manifest, String name) {
+		for (Map.Entry<String,Manifest.Entry> e : previous.entries.entrySet()) {
+			String f = e.getKey();
+			Manifest.Entry old = e.getValue();
+			if ((f.equals(name) || f.startsWith(name + "/")) && !manifest.entries.containsKey(f))
+				manifest.put(f, old.size, old.mtime, old.crc);
 		}
-		return md.digest();
 	}
 
-	private static StringBuilder byteToHex(byte bytes[]) {
+	/* Records the files of the previous backup that are gone */
+	private void writeDeleted(ZipWriter zip, Manifest previous, Manifest manifest) throws IOException {
 		StringBuilder sb = new StringBuilder();
-		for (byte b : bytes)
-			sb.append(String.format("%02x", b));
-		return sb;
+		for (String name : previous.entries.keySet())
+			if (!manifest.entries.containsKey(name))
+				sb.append(name).append('\n');
+		if (sb.length() == 0)
+			return;
+
+		byte data[] = sb.toString().getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		zip.writeEntry(DELETED_ENTRY, System.currentTimeMillis(), ZipWriter.STORED,
+				crc.getValue(), data.length, data, data.length);
+		log.debug("Deleted since the last backup: %s", sb);
+	}
+
+	private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+	static String toHex(byte bytes[]) {
+		char hex[] = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2*i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2*i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
 	}
 }
@@ -0,0 +1,21 @@
+package core;
+
+import java.util.concurrent.CancellationException;
+
+/* Asks a running backup to stop, it does between two files */
+public class CancellationToken {
+	private volatile boolean cancelled;
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	void check() {
+		if (cancelled)
+			throw new CancellationException();
+	}
+}
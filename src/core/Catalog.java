@@ -0,0 +1,395 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static core.I18n.i18n;
+
+/*
+ * What every ZIP backup of a destination holds, so a file is found without
+ * opening each archive.  The catalog follows the archives in the directory:
+ * those not in it yet are read (only their central directory) and those
+ * gone are dropped, so a lost or damaged catalog is rebuilt the same way.
+ *
+ * Entries are sorted by path, then archive, and each path only keeps what
+ * it does not share with the one before; every RESTART entries the whole
+ * path is kept, and the offsets of those entries are searched to find a
+ * path or a prefix.  Files listed as deleted by an incremental backup are
+ * entries with a size of DELETED.
+ *
+ * File: MAGIC, archive count, archives (name, size, mtime), entry count,
+ * entry bytes, restart count, restart offsets.  Entry: shared bytes, new
+ * bytes, archive, size + 1, mtime, CRC, numbers as variable-length longs.
+ */
+class Catalog {
+	static final String FILENAME = "dumback.catalog";
+	static final long DELETED = -1;
+	private static final long MAGIC = 0x44554d4243415431L; /* DUMBCAT1 */
+	private static final int RESTART = 16;
+	private static final Object lock = new Object(); /* the jobs of two configs may share a destination */
+
+	private static class Archive {
+		final String name;
+		final long size;
+		final long mtime;
+
+		Archive(String name, long size, long mtime) {
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		boolean same(Archive a) {
+			return name.equals(a.name) && size == a.size && mtime == a.mtime;
+		}
+	}
+
+	private static class Entry {
+		String path;
+		int archive;
+		long size;
+		long mtime;
+		long crc;
+	}
+
+	private final Path dest;
+	private final List<Archive> archives;
+	private final byte entries[];
+	private final int entryCount;
+	private final int restarts[];
+
+	private Catalog(Path dest, List<Archive> archives, byte entries[], int entryCount, int restarts[]) {
+		this.dest = dest;
+		this.archives = archives;
+		this.entries = entries;
+		this.entryCount = entryCount;
+		this.restarts = restarts;
+	}
+
+	/* The catalog of dest, brought up to date with its archives and saved if it changed */
+	static Catalog open(Path dest, Log log) throws IOException {
+		synchronized (lock) {
+			Path path = dest.resolve(FILENAME);
+			Catalog old = null;
+			if (Files.exists(path)) {
+				try {
+					old = read(dest, path);
+				} catch (IOException e) {
+					log.error(i18n("error.Invalid_catalog"), path, e.getMessage());
+				}
+			}
+
+			List<Archive> current = new ArrayList<>();
+			for (Path archive : Restore.archives(dest))
+				current.add(new Archive(archive.getFileName().toString(), Files.size(archive),
+						Files.getLastModifiedTime(archive).toMillis()));
+			current.sort(Comparator.comparing(a -> a.name));
+
+			if (old == null && current.isEmpty())
+				return new Catalog(dest, current, new byte[0], 0, new int[0]); /* not a ZIP destination */
+			if (old != null && old.archives.size() == current.size()) {
+				boolean same = true;
+				for (int i = 0; i < current.size() && same; i++)
+					same = old.archives.get(i).same(current.get(i));
+				if (same)
+					return old;
+			}
+
+			Catalog catalog = update(dest, old, current, log);
+			catalog.write(path);
+			log.debug("Catalog of '%s': %d archives, %d entries", dest, current.size(), catalog.entryCount);
+			return catalog;
+		}
+	}
+
+	/* Versions of the file at path and of the files under it, when it is a directory; everything when blank */
+	List<FileVersion> find(String path) {
+		List<FileVersion> found = new ArrayList<>();
+		for (Entry e : scan(path))
+			if (e.size != DELETED)
+				found.add(version(e));
+		return found;
+	}
+
+	/*
+	 * The newest backup to restore the file or directory at path from, null
+	 * if there is none or a later incremental backup says the file was
+	 * deleted; a volume set is given by VolumeSet.setPath().  While a file
+	 * under a directory is still there, that is the last backup to change
+	 * any of them (deleting one too), otherwise the last one with a file.
+	 */
+	Path findNewest(String path) {
+		List<Entry> found = scan(path);
+		int newest = -1; /* with a file */
+		int changed = -1;
+		boolean live = false;
+		boolean deletedFile = false;
+		for (int i = 0; i < found.size(); i++) {
+			Entry e = found.get(i);
+			changed = Math.max(changed, e.archive);
+			if (e.size != DELETED)
+				newest = Math.max(newest, e.archive);
+			if (i + 1 == found.size() || !found.get(i + 1).path.equals(e.path)) { /* its last entry */
+				if (e.size != DELETED)
+					live = true;
+				else if (e.path.equals(path))
+					deletedFile = true;
+			}
+		}
+		if (newest == -1 || deletedFile)
+			return null;
+		return VolumeSet.setPath(dest.resolve(archives.get(live ? changed : newest).name));
+	}
+
+	/* Entries from the last restart before path, while they can start with it */
+	private List<Entry> scan(String path) {
+		List<Entry> found = new ArrayList<>();
+		if (entryCount == 0)
+			return found;
+
+		int lo = 0;
+		int hi = restarts.length - 1;
+		while (lo < hi) { /* the last restart with a path before */
+			int mid = (lo + hi + 1) >>> 1;
+			if (pathAt(restarts[mid]).compareTo(path) < 0)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(entries, restarts[lo], entries.length - restarts[lo]);
+		byte last[] = new byte[0];
+		for (int i = lo * RESTART; i < entryCount; i++) {
+			Entry e = new Entry();
+			last = decode(in, last, e);
+			int c = e.path.compareTo(path);
+			if (c < 0)
+				continue;
+			if (!e.path.startsWith(path))
+				break;
+			if (path.isEmpty() || c == 0 || e.path.charAt(path.length()) == '/')
+				found.add(e);
+		}
+		return found;
+	}
+
+	private String pathAt(int offset) {
+		Entry e = new Entry();
+		decode(ByteBuffer.wrap(entries, offset, entries.length - offset), new byte[0], e);
+		return e.path;
+	}
+
+	private FileVersion version(Entry e) {
+		return new FileVersion(dest.resolve(archives.get(e.archive).name), e.path, e.size, e.mtime, e.crc);
+	}
+
+	/* Keeps the entries of archives still there and reads those that are new */
+	private static Catalog update(Path dest, Catalog old, List<Archive> current, Log log) {
+		Map<String,Integer> index = new HashMap<>();
+		for (int i = 0; i < current.size(); i++)
+			index.put(current.get(i).name, i);
+
+		List<Entry> all = new ArrayList<>();
+		boolean known[] = new boolean[current.size()];
+		if (old != null) {
+			int map[] = new int[old.archives.size()];
+			for (int i = 0; i < map.length; i++) {
+				Archive a = old.archives.get(i);
+				Integer j = index.get(a.name);
+				map[i] = j != null && a.same(current.get(j)) ? j : -1;
+				if (map[i] != -1)
+					known[map[i]] = true;
+			}
+			ByteBuffer in = ByteBuffer.wrap(old.entries);
+			byte last[] = new byte[0];
+			for (int i = 0; i < old.entryCount; i++) {
+				Entry e = new Entry();
+				last = decode(in, last, e);
+				if (map[e.archive] == -1)
+					continue;
+				e.archive = map[e.archive];
+				all.add(e);
+			}
+		}
+
+		List<Archive> kept = new ArrayList<>(current);
+		for (int i = 0; i < current.size(); i++) {
+			if (known[i])
+				continue;
+			Path archive = dest.resolve(current.get(i).name);
+			try {
+				all.addAll(readArchive(archive, i));
+			} catch (IOException e) {
+				log.error(i18n("error.Failed_to_access"), archive, e.getMessage());
+				kept.set(i, new Archive(current.get(i).name, -1, -1)); /* read again next time */
+			}
+		}
+
+		all.sort(Comparator.comparing((Entry e) -> e.path).thenComparingInt(e -> e.archive));
+		return encode(dest, kept, all);
+	}
+
+	private static List<Entry> readArchive(Path archive, int number) throws IOException {
+		List<Entry> read = new ArrayList<>();
+		try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ)) {
+			ZipIndex zip = ZipIndex.read(ch);
+			for (ZipIndex.Entry z : zip.entries) {
+				if (z.name.equals(Backup.DELETED_ENTRY)) {
+					for (String name : Restore.deletedNames(ch, zip, z)) {
+						Entry e = new Entry();
+						e.path = name;
+						e.archive = number;
+						e.size = DELETED;
+						read.add(e);
+					}
+					continue;
+				}
+				Entry e = new Entry();
+				e.path = z.name;
+				e.archive = number;
+				e.size = z.size;
+				e.mtime = ZipIndex.javaTime(z.dosTime);
+				e.crc = z.crc;
+				read.add(e);
+			}
+		}
+		return read;
+	}
+
+	private static Catalog encode(Path dest, List<Archive> archives, List<Entry> sorted) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int restarts[] = new int[(sorted.size() + RESTART - 1) / RESTART];
+		byte last[] = new byte[0];
+		for (int i = 0; i < sorted.size(); i++) {
+			Entry e = sorted.get(i);
+			byte path[] = e.path.getBytes(StandardCharsets.UTF_8);
+			int shared = 0;
+			if (i % RESTART == 0)
+				restarts[i / RESTART] = out.size();
+			else
+				while (shared < last.length && shared < path.length && last[shared] == path[shared])
+					shared++;
+			putLong(out, shared);
+			putLong(out, path.length - shared);
+			out.write(path, shared, path.length - shared);
+			putLong(out, e.archive);
+			putLong(out, e.size + 1);
+			putLong(out, e.mtime);
+			putLong(out, e.crc);
+			last = path;
+		}
+		return new Catalog(dest, archives, out.toByteArray(), sorted.size(), restarts);
+	}
+
+	/* Reads the entry at the position of in, after the one with the path last; returns its path bytes */
+	private static byte[] decode(ByteBuffer in, byte last[], Entry e) {
+		int shared = (int)getLong(in);
+		int added = (int)getLong(in);
+		byte path[] = Arrays.copyOf(last, shared + added);
+		in.get(path, shared, added);
+		e.path = new String(path, StandardCharsets.UTF_8);
+		e.archive = (int)getLong(in);
+		e.size = getLong(in) - 1;
+		e.mtime = getLong(in);
+		e.crc = getLong(in);
+		return path;
+	}
+
+	private static Catalog read(Path dest, Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+			if (in.readLong() != MAGIC)
+				throw new IOException("Not a catalog");
+			int count = in.readInt();
+			List<Archive> archives = new ArrayList<>();
+			for (int i = 0; i < count; i++)
+				archives.add(new Archive(in.readUTF(), in.readLong(), in.readLong()));
+			int entryCount = in.readInt();
+			byte entries[] = new byte[in.readInt()];
+			in.readFully(entries);
+			int restarts[] = new int[in.readInt()];
+			for (int i = 0; i < restarts.length; i++)
+				restarts[i] = in.readInt();
+			if (restarts.length != (entryCount + RESTART - 1) / RESTART)
+				throw new IOException("Wrong number of restarts");
+
+			Catalog catalog = new Catalog(dest, archives, entries, entryCount, restarts);
+			catalog.check();
+			return catalog;
+		} catch (EOFException e) {
+			throw new IOException("Cut short", e);
+		} catch (RuntimeException e) { /* damaged entries */
+			throw new IOException("Damaged entries", e);
+		}
+	}
+
+	/* Decodes every entry, so a damaged catalog is found before it is used */
+	private void check() throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(entries);
+		byte last[] = new byte[0];
+		for (int i = 0; i < entryCount; i++) {
+			if (i % RESTART == 0 && in.position() != restarts[i / RESTART])
+				throw new IOException("Wrong restart offset");
+			Entry e = new Entry();
+			last = decode(in, last, e);
+			if (e.archive < 0 || e.archive >= archives.size())
+				throw new IOException("Wrong archive number");
+		}
+		if (in.hasRemaining())
+			throw new IOException("Trailing bytes");
+	}
+
+	private void write(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeLong(MAGIC);
+			out.writeInt(archives.size());
+			for (Archive a : archives) {
+				out.writeUTF(a.name);
+				out.writeLong(a.size);
+				out.writeLong(a.mtime);
+			}
+			out.writeInt(entryCount);
+			out.writeInt(entries.length);
+			out.write(entries);
+			out.writeInt(restarts.length);
+			for (int r : restarts)
+				out.writeInt(r);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* Seven bits at a time, low ones first, as in a ZIP or protobuf varint */
+	private static void putLong(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int)(v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int)v);
+	}
+
+	private static long getLong(ByteBuffer in) {
+		long v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			v |= (long)(b & 0x7F) << shift;
+			if (b >= 0)
+				return v;
+		}
+	}
+}
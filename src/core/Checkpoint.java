@@ -0,0 +1,147 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Progress of a ZIP backup written to '<archive>.part', so that a backup
+ * interrupted by a crash, a kill or a sleep goes on where it was left.  Now
+ * and then, between two entries, the part file is forced to the disk and
+ * the entries written since are appended to '<archive>.checkpoint',
+ * followed by the size of the part file they fill.  Entries after the last
+ * size line, and what the part file holds past that size, are left out
+ * when the backup is resumed.  The settings must be the same to resume.
+ * The interval, 30 seconds, can be set with -Ddumback.checkpointSeconds.
+ *
+ * Entry line: offset TAB method TAB flags TAB dos time TAB crc TAB
+ *             compressed size TAB size TAB mtime TAB name
+ */
+class Checkpoint {
+	static final String PART_SUFFIX = ".part";
+	static final String SUFFIX = ".checkpoint";
+	static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("dumback.checkpointSeconds", 30));
+	private static final String HEADER = "# Dumback checkpoint";
+
+	final Path archive; /* its final path */
+	final String settings;
+	final List<ZipWriter.Entry> entries = new ArrayList<>();
+	long size;
+
+	Checkpoint(Path archive, String settings) {
+		this.archive = archive;
+		this.settings = settings;
+	}
+
+	static Path partPath(Path archive) {
+		return archive.resolveSibling(archive.getFileName() + PART_SUFFIX);
+	}
+
+	static Path path(Path archive) {
+		return archive.resolveSibling(archive.getFileName() + SUFFIX);
+	}
+
+	/* The archive of a part file, null if it is not one */
+	static Path archiveOf(Path part) {
+		String name = part.getFileName().toString();
+		if (!name.endsWith(PART_SUFFIX))
+			return null;
+		return part.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length()));
+	}
+
+	static Checkpoint read(Path archive) throws IOException {
+		Checkpoint c;
+		List<ZipWriter.Entry> uncommitted = new ArrayList<>();
+		try (BufferedReader r = Files.newBufferedReader(path(archive))) {
+			String line = r.readLine();
+			if (!HEADER.equals(line))
+				throw new IOException("Not a checkpoint: " + path(archive));
+			line = r.readLine();
+			if (line == null || !line.startsWith("settings="))
+				throw new IOException("Missing 'settings=' in checkpoint");
+			c = new Checkpoint(archive, line.substring("settings=".length()));
+
+			while ((line = r.readLine()) != null) {
+				if (line.startsWith("size=")) {
+					c.size = Long.parseLong(line.substring("size=".length()));
+					c.entries.addAll(uncommitted);
+					uncommitted.clear();
+					continue;
+				}
+				String f[] = line.split("\t", 9);
+				if (f.length != 9)
+					break; /* cut short by the crash */
+				ZipWriter.Entry e = new ZipWriter.Entry();
+				e.offset = Long.parseLong(f[0]);
+				e.method = Integer.parseInt(f[1]);
+				e.flags = Integer.parseInt(f[2]);
+				e.dosTime = Integer.parseInt(f[3]);
+				e.crc = Long.parseLong(f[4], 16);
+				e.csize = Long.parseLong(f[5]);
+				e.size = Long.parseLong(f[6]);
+				e.mtime = Long.parseLong(f[7]);
+				e.name = f[8].getBytes(StandardCharsets.UTF_8);
+				uncommitted.add(e);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid checkpoint: " + path(archive), e);
+		}
+		return c;
+	}
+
+	/* Replaces the file with what is committed, dropping anything after it */
+	void write() throws IOException {
+		Path path = path(archive);
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (BufferedWriter w = Files.newBufferedWriter(tmp)) {
+			w.write(HEADER);
+			w.newLine();
+			w.write("settings=" + settings);
+			w.newLine();
+			for (ZipWriter.Entry e : entries) {
+				w.write(line(e));
+				w.newLine();
+			}
+			w.write("size=" + size);
+			w.newLine();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* Appends entries written since, the part file being size bytes long and on the disk */
+	void commit(List<ZipWriter.Entry> added, long size) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (ZipWriter.Entry e : added)
+			sb.append(line(e)).append('\n');
+		sb.append("size=").append(size).append('\n');
+
+		try (FileChannel ch = FileChannel.open(path(archive), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer buf = StandardCharsets.UTF_8.encode(sb.toString());
+			while (buf.hasRemaining())
+				ch.write(buf);
+			ch.force(false);
+		}
+		entries.addAll(added);
+		this.size = size;
+	}
+
+	void delete() throws IOException {
+		Files.deleteIfExists(path(archive));
+		Files.deleteIfExists(partPath(archive));
+	}
+
+	private static String line(ZipWriter.Entry e) {
+		return e.offset + "\t" + e.method + "\t" + e.flags + "\t" + e.dosTime + "\t"
+			+ Long.toHexString(e.crc) + "\t" + e.csize + "\t" + e.size + "\t" + e.mtime + "\t" + e.name();
+	}
+}
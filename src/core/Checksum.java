@@ -0,0 +1,154 @@
+package core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/*
+ * Checksum of an archive with one of the supported algorithms, and the
+ * sidecar file holding it.  MD5 sidecars are '<archive>.md5' in the format
+ * of md5sum; the other algorithms write '<archive>.sum' in the BSD tagged
+ * format ("SHA256 (name) = hex"), which names the algorithm.
+ */
+class Checksum {
+	static final String MD5_SUFFIX = ".md5";
+	static final String SUM_SUFFIX = ".sum";
+
+	/* What a sidecar says the archive checksum should be */
+	static class Expected {
+		final Options.ChecksumAlgorithm algorithm;
+		final String hex;
+
+		Expected(Options.ChecksumAlgorithm algorithm, String hex) {
+			this.algorithm = algorithm;
+			this.hex = hex;
+		}
+	}
+
+	final Options.ChecksumAlgorithm algorithm;
+	private final MessageDigest md;
+	private final CRC32C crc;
+	private long wrapNanos;
+
+	Checksum(Options.ChecksumAlgorithm algorithm) {
+		this.algorithm = algorithm;
+		try {
+			switch (algorithm) {
+			case MD5:
+				md = MessageDigest.getInstance("MD5");
+				crc = null;
+				break;
+			case SHA256:
+				md = MessageDigest.getInstance("SHA-256");
+				crc = null;
+				break;
+			default:
+				md = null;
+				crc = new CRC32C();
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void update(byte b[], int off, int len) {
+		if (md != null)
+			md.update(b, off, len);
+		else
+			crc.update(b, off, len);
+	}
+
+	void update(ByteBuffer buf) {
+		if (md != null)
+			md.update(buf);
+		else
+			crc.update(buf);
+	}
+
+	/* Returns the checksum and starts a new one */
+	byte[] digest() {
+		if (md != null)
+			return md.digest();
+
+		long v = crc.getValue();
+		crc.reset();
+		return new byte[] { (byte)(v >> 24), (byte)(v >> 16), (byte)(v >> 8), (byte)v };
+	}
+
+	void reset() {
+		if (md != null)
+			md.reset();
+		else
+			crc.reset();
+	}
+
+	/* Everything written to the returned stream is added to the checksum */
+	OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte b[], int off, int len) throws IOException {
+				out.write(b, off, len);
+				long start = System.nanoTime();
+				update(b, off, len);
+				wrapNanos += System.nanoTime() - start;
+			}
+		};
+	}
+
+	/* Time spent hashing what went through wrap() */
+	long wrapNanos() {
+		return wrapNanos;
+	}
+
+	static void writeSidecar(Path archive, Options.ChecksumAlgorithm algorithm, String hex) throws IOException {
+		String name = archive.getFileName().toString();
+		if (algorithm == Options.ChecksumAlgorithm.MD5)
+			Files.writeString(sidecar(archive, MD5_SUFFIX),
+					hex + "  " + name + System.lineSeparator());
+		else
+			Files.writeString(sidecar(archive, SUM_SUFFIX),
+					algorithm + " (" + name + ") = " + hex + System.lineSeparator());
+	}
+
+	static Expected readSidecar(Path archive) throws IOException {
+		Path sum = sidecar(archive, SUM_SUFFIX);
+		if (!Files.exists(sum))
+			return new Expected(Options.ChecksumAlgorithm.MD5,
+					Files.readString(sidecar(archive, MD5_SUFFIX)).split("  ")[0]);
+
+		String line = Files.readString(sum).trim();
+		int paren = line.indexOf(" (");
+		int equals = line.lastIndexOf(") = ");
+		if (paren == -1 || equals == -1)
+			throw new IOException("Invalid checksum line: " + line);
+		try {
+			return new Expected(
+					Options.ChecksumAlgorithm.valueOf(line.substring(0, paren)),
+					line.substring(equals + 4));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown checksum algorithm: " + line.substring(0, paren));
+		}
+	}
+
+	/* The sidecars the archive may have */
+	static List<Path> sidecars(Path archive) {
+		return List.of(sidecar(archive, MD5_SUFFIX), sidecar(archive, SUM_SUFFIX));
+	}
+
+	private static Path sidecar(Path archive, String suffix) {
+		String name = archive.getFileName().toString();
+		return archive.resolveSibling(name.substring(0, name.lastIndexOf('.')) + suffix);
+	}
+}
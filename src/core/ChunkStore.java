@@ -0,0 +1,467 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import static core.I18n.i18n;
+
+/*
+ * Deduplicating backend: files are cut in chunks where a rolling (gear)
+ * hash of their content matches, so an insertion only changes the chunks
+ * around it.  Every chunk is stored once in CHUNK_DIR, named by its
+ * SHA-256, and a backup is a snapshot file listing the chunks of each file.
+ *
+ * Snapshot line: size TAB mtime TAB chunk,chunk,... TAB name
+ *
+ * A file is restored by writing its chunks one after the other.
+ */
+class ChunkStore {
+	static final String CHUNK_DIR = "dumback_chunks";
+	static final String SNAPSHOT_SUFFIX = ".snap";
+	private static final String HEADER = "# Dumback snapshot";
+
+	private static final int MIN_CHUNK = 256 * 1024;
+	private static final int MAX_CHUNK = 4 * 1024 * 1024;
+	/* 20 bits: a cut every MiB after MIN_CHUNK, so about 1.3 MiB chunks on average */
+	private static final long CUT_MASK = -1L << 44;
+	private static final long GEAR[] = new long[256];
+
+	private static final byte STORED = 0;
+	private static final byte DEFLATED = 8;
+	private static final ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[MAX_CHUNK]);
+
+	static {
+		SplittableRandom r = new SplittableRandom(0x64756d6261636bL);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextLong();
+	}
+
+	private static class FileEntry {
+		long size;
+		long mtime;
+		List<String> chunks;
+		String name;
+	}
+
+	private final Path chunkDir;
+	private final Log log;
+
+	ChunkStore(Path dest, Log log) {
+		this.chunkDir = dest.resolve(CHUNK_DIR);
+		this.log = log;
+	}
+
+	/*
+	 * The snapshot file goes through sum as it is written, files that cannot
+	 * be read go to onError.  Chunks stored before a failure or cancellation
+	 * are left for collectGarbage().
+	 */
+	void createSnapshot(Path snapPath, List<Path> sourceDirs, Path previousSnap,
+			int threads, int scanThreads, Filter filter, Checksum sum, SourceScanner.ErrorHandler onError,
+			Metrics metrics, Progress progress, Throttle throttle) throws IOException {
+		Files.createDirectories(chunkDir);
+		deleteStaleSnapshots(snapPath.getParent());
+
+		Map<String,FileEntry> previous = new HashMap<>();
+		if (previousSnap != null) {
+			log.debug("Reusing unchanged files of snapshot: '%s'", previousSnap);
+			for (FileEntry e : readSnapshot(previousSnap))
+				previous.put(e.name, e);
+		}
+
+		Path tmp = snapPath.resolveSibling(snapPath.getFileName() + ".tmp");
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "dumback-chunk");
+			t.setDaemon(true);
+			return t;
+		});
+		Deque<Future<FileEntry>> pending = new ArrayDeque<>();
+
+		try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(
+						sum.wrap(throttle.wrap(Files.newOutputStream(tmp))), StandardCharsets.UTF_8));
+				SourceScanner scanner = new SourceScanner(sourceDirs, scanThreads, filter, onError)) {
+			w.write(HEADER);
+			w.newLine();
+			progress.scanning(scanner);
+
+			log.debug("Chunking:");
+			SourceScanner.Found found;
+			while ((found = scanner.next()) != null) {
+				progress.check();
+				metrics.scanned();
+				Path path = found.path;
+				FileEntry e = new FileEntry();
+				e.name = found.name;
+				e.size = found.attrs.size();
+				e.mtime = found.attrs.lastModifiedTime().toMillis();
+
+				FileEntry old = previous.get(e.name);
+				if (old != null && old.size == e.size && old.mtime == e.mtime) {
+					e.chunks = old.chunks;
+					pending.addLast(CompletableFuture.completedFuture(e));
+				} else {
+					log.debug(() -> "  " + e.name);
+					pending.addLast(pool.submit(() -> {
+						try {
+							throttle.enter();
+							try {
+								return storeFile(path, e, metrics, throttle);
+							} finally {
+								throttle.exit();
+							}
+						} catch (IOException ex) {
+							onError.failed(path, e.name, ex);
+							e.chunks = null;
+							return e;
+						}
+					}));
+				}
+				while (pending.size() > threads * 4)
+					writeEntry(w, pending.removeFirst(), progress);
+			}
+			metrics.scanDone(scanner.walkEnd());
+			scanner.reportFiltered(log);
+			while (!pending.isEmpty())
+				writeEntry(w, pending.removeFirst(), progress);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		} finally {
+			for (Future<FileEntry> f : pending)
+				f.cancel(true);
+			pool.shutdownNow();
+		}
+
+		Files.move(tmp, snapPath, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* Checks that every chunk of the snapshot is there and intact, verified must be thread-safe */
+	boolean verify(Path snapPath, Set<String> verified, Verifier verifier) throws IOException {
+		MessageDigest sha = sha256();
+		boolean valid = true;
+		for (FileEntry e : readSnapshot(snapPath)) {
+			for (String chunk : e.chunks) {
+				if (verified.contains(chunk))
+					continue;
+				try {
+					Path path = chunkPath(chunk);
+					byte stored[] = verifier.withIo(() -> Files.readAllBytes(path));
+					verifier.metrics.verified(stored.length);
+					byte data[] = decodeChunk(stored);
+					long start = System.nanoTime();
+					byte digest[] = sha.digest(data);
+					verifier.metrics.hashed(System.nanoTime() - start);
+					if (!chunk.equals(Backup.toHex(digest))) {
+						log.error(i18n("error.Chunk_corrupted"), chunk, e.name);
+						valid = false;
+						continue;
+					}
+				} catch (IOException | DataFormatException ex) {
+					log.error(i18n("error.Chunk_corrupted"), chunk, e.name);
+					valid = false;
+					continue;
+				}
+				verified.add(chunk);
+			}
+		}
+		return valid;
+	}
+
+	List<ArchiveEntry> list(Path snapPath) throws IOException {
+		List<ArchiveEntry> entries = new ArrayList<>();
+		for (FileEntry e : readSnapshot(snapPath))
+			entries.add(new ArchiveEntry(e.name, e.size, e.mtime));
+		entries.sort(Comparator.comparing((ArchiveEntry e) -> e.name));
+		return entries;
+	}
+
+	/*
+	 * Writes the file or directory at path (everything when blank) of the
+	 * snapshot under root from its chunks, checking the hash of each chunk
+	 * and the size of each file; returns how many files.
+	 */
+	int restore(Path snapPath, String path, Path root) throws IOException {
+		MessageDigest sha = sha256();
+		int count = 0;
+		for (FileEntry e : readSnapshot(snapPath)) {
+			if (!Restore.matches(e.name, path))
+				continue;
+
+			Path file = Restore.targetFile(root, e.name);
+			log.debug(() -> "  " + e.name);
+			Files.createDirectories(file.getParent());
+			long size = 0;
+			try (OutputStream out = Files.newOutputStream(file)) {
+				for (String chunk : e.chunks) {
+					byte data[];
+					try {
+						data = decodeChunk(Files.readAllBytes(chunkPath(chunk)));
+					} catch (IOException | DataFormatException ex) {
+						throw new IOException(i18n("error.Chunk_corrupted", chunk, e.name), ex);
+					}
+					if (!chunk.equals(Backup.toHex(sha.digest(data))))
+						throw new IOException(i18n("error.Chunk_corrupted", chunk, e.name));
+					out.write(data);
+					size += data.length;
+				}
+			}
+			if (size != e.size)
+				throw new IOException("Wrong size: " + e.name);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(e.mtime));
+			count++;
+		}
+		return count;
+	}
+
+	/* Mark and sweep: deletes every chunk not in one of the given snapshots */
+	void collectGarbage(Collection<Path> snapshots) throws IOException {
+		if (!Files.isDirectory(chunkDir))
+			return;
+
+		log.debug("Collecting unreferenced chunks in: '%s'", chunkDir);
+
+		Set<String> marked = new HashSet<>();
+		for (Path snap : snapshots)
+			for (FileEntry e : readSnapshot(snap))
+				marked.addAll(e.chunks);
+
+		long deleted = 0;
+		try (Stream<Path> walk = Files.walk(chunkDir, 2)) {
+			Iterator<Path> it = walk.iterator();
+			while (it.hasNext()) {
+				Path path = it.next();
+				if (path.getNameCount() - chunkDir.getNameCount() != 2)
+					continue;
+				if (marked.contains(path.getFileName().toString()))
+					continue;
+				try {
+					Files.delete(path);
+					deleted++;
+				} catch (IOException e) {
+					log.error(i18n("error.Failed_to_delete"), path, e.getMessage());
+				}
+			}
+		}
+
+		log.debug("Deleted %d unreferenced chunks, %d are in use", deleted, marked.size());
+	}
+
+	/* Snapshots left half written by a run that was killed */
+	private void deleteStaleSnapshots(Path dest) throws IOException {
+		try (Stream<Path> list = Files.list(dest)) {
+			Iterator<Path> it = list.iterator();
+			while (it.hasNext()) {
+				Path path = it.next();
+				if (path.getFileName().toString().endsWith(SNAPSHOT_SUFFIX + ".tmp")) {
+					log.debug("Deleting unfinished snapshot: '%s'", path);
+					Files.deleteIfExists(path);
+				}
+			}
+		}
+	}
+
+	private void writeEntry(BufferedWriter w, Future<FileEntry> f, Progress progress) throws IOException {
+		FileEntry e;
+		try {
+			e = f.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException(cause);
+		}
+		progress.done(e.chunks != null ? e.size : 0);
+		if (e.chunks == null)
+			return;
+
+		w.write(e.size + "\t" + e.mtime + "\t" + String.join(",", e.chunks) + "\t" + e.name);
+		w.newLine();
+	}
+
+	private FileEntry storeFile(Path path, FileEntry e, Metrics metrics, Throttle throttle) throws IOException {
+		MessageDigest sha = sha256();
+		byte buf[] = buffer.get();
+		int len = 0;
+		boolean eof = false;
+
+		e.chunks = new ArrayList<>();
+		try (InputStream in = throttle.wrap(Files.newInputStream(path))) {
+			while (true) {
+				int n;
+				while (!eof && len < buf.length)
+					if ((n = in.read(buf, len, buf.length - len)) < 0)
+						eof = true;
+					else
+						len += n;
+				if (len == 0)
+					break;
+
+				int cut = cutPoint(buf, len);
+				long start = System.nanoTime();
+				sha.update(buf, 0, cut);
+				String chunk = Backup.toHex(sha.digest());
+				metrics.hashed(System.nanoTime() - start);
+				metrics.read(cut);
+				storeChunk(chunk, buf, cut, metrics, throttle);
+				e.chunks.add(chunk);
+
+				System.arraycopy(buf, cut, buf, 0, len - cut);
+				len -= cut;
+			}
+		}
+		return e;
+	}
+
+	private static int cutPoint(byte buf[], int len) {
+		if (len <= MIN_CHUNK)
+			return len;
+
+		long hash = 0;
+		for (int i = MIN_CHUNK - 64; i < len; i++) {
+			hash = (hash << 1) + GEAR[buf[i] & 0xff];
+			if (i >= MIN_CHUNK && (hash & CUT_MASK) == 0)
+				return i + 1;
+		}
+		return len;
+	}
+
+	private Path chunkPath(String chunk) {
+		return chunkDir.resolve(chunk.substring(0, 2)).resolve(chunk);
+	}
+
+	private void storeChunk(String chunk, byte data[], int len, Metrics metrics, Throttle throttle) throws IOException {
+		Path path = chunkPath(chunk);
+		if (Files.exists(path)) {
+			/* A chunk is trusted only if it reads back to the same data */
+			try {
+				byte stored[] = decodeChunk(Files.readAllBytes(path));
+				if (Arrays.equals(stored, 0, stored.length, data, 0, len))
+					return;
+			} catch (IOException | DataFormatException e) {
+			}
+			log.debug("Rewriting damaged chunk: '%s'", chunk);
+		}
+
+		long start = System.nanoTime();
+		byte out[] = new byte[len + 1];
+		Deflater d = new Deflater();
+		int n;
+		try {
+			d.setInput(data, 0, len);
+			d.finish();
+			n = d.deflate(out, 1, len);
+			if (!d.finished())
+				n = -1;
+		} finally {
+			d.end();
+		}
+
+		if (n < 0) {
+			out[0] = STORED;
+			System.arraycopy(data, 0, out, 1, len);
+			n = len;
+		} else {
+			out[0] = DEFLATED;
+		}
+		metrics.compressed(System.nanoTime() - start);
+
+		Files.createDirectories(path.getParent());
+		Path tmp = path.resolveSibling(chunk + ".tmp" + Thread.currentThread().getId());
+		throttle.write(n + 1);
+		Files.write(tmp, n + 1 == out.length ? out : Arrays.copyOf(out, n + 1));
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		metrics.written(n + 1);
+	}
+
+	private static byte[] decodeChunk(byte data[]) throws DataFormatException {
+		if (data.length == 0)
+			throw new DataFormatException("Empty chunk");
+		if (data[0] == STORED)
+			return Arrays.copyOfRange(data, 1, data.length);
+
+		Inflater inf = new Inflater();
+		try {
+			inf.setInput(data, 1, data.length - 1);
+			byte out[] = new byte[MAX_CHUNK];
+			int n = 0;
+			while (!inf.finished()) {
+				int k = inf.inflate(out, n, out.length - n);
+				if (k == 0 && (inf.needsInput() || inf.needsDictionary() || n == out.length))
+					throw new DataFormatException("Truncated chunk");
+				n += k;
+			}
+			return Arrays.copyOf(out, n);
+		} finally {
+			inf.end();
+		}
+	}
+
+	private static List<FileEntry> readSnapshot(Path snapPath) throws IOException {
+		List<FileEntry> entries = new ArrayList<>();
+		try (BufferedReader r = Files.newBufferedReader(snapPath)) {
+			String line = r.readLine();
+			if (!HEADER.equals(line))
+				throw new IOException("Not a snapshot: " + snapPath);
+			while ((line = r.readLine()) != null) {
+				String f[] = line.split("\t", 4);
+				if (f.length != 4)
+					throw new IOException("Invalid snapshot line: " + line);
+				FileEntry e = new FileEntry();
+				try {
+					e.size = Long.parseLong(f[0]);
+					e.mtime = Long.parseLong(f[1]);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Invalid snapshot line: " + line, ex);
+				}
+				e.chunks = f[2].isEmpty() ? List.of() : Arrays.asList(f[2].split(","));
+				e.name = f[3];
+				entries.add(e);
+			}
+		}
+		return entries;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -11,16 +11,55 @@ import java.time.DateTimeException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import static core.I18n.i18n;
 
+/*
+ * The main backup job is set at the top of dumback.cfg, its directories
+ * listed under [Directories].  Other jobs each have a [Job name] section
+ * with the same entries, a 'source=' line per directory, and any of the
+ * options, the ones not set being those of the main job.  Each job must
+ * have its own destination.
+ *
+ * Entries that are unknown or invalid, and the whole section of a job that
+ * is, are ignored but written back as they were read, so saving the
+ * config never loses what a mistake made unusable.
+ */
 class Config {
 	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final String JOB_PREFIX = "[Job ";
+	private static final String DIRECTORIES = "[Directories]";
 
 	private final Path configPath;
 	private final Log log;
 
-	ConfigEntries cfg = new ConfigEntries();
+	volatile ConfigEntries cfg = new ConfigEntries();
+	volatile List<ConfigEntries> jobs = List.of(); /* besides the main one */
+
+	/* Lines ignored when read, by the name of their job (the main one is "") */
+	private final Map<String,List<String>> ignoredLines = new HashMap<>();
+	/* Sections of the jobs ignored when read, each from its [Job name] line */
+	private final List<List<String>> ignoredJobs = new ArrayList<>();
+
+	/* Entries of a section as they are read */
+	private static class Section {
+		final String name;
+		Date lastBackup;
+		Path destPath;
+		int freqDays;
+		int keepDays;
+		final List<Path> dirs = new ArrayList<>();
+		final Map<String,String> options = new LinkedHashMap<>();
+		final List<String> ignored = new ArrayList<>(); /* lines of the entries not used */
+		final List<String> lines = new ArrayList<>(); /* all of them, from the [Job name] one */
+
+		Section(String name) {
+			this.name = name;
+		}
+	}
 
 	Config(Path configPath, Log log) {
 		this.configPath = configPath;
@@ -40,12 +79,36 @@ class Config {
 		}
 
 		log.debug("%s", cfg);
+		for (ConfigEntries job : jobs)
+			log.debug("%s", job);
 	}
 
-	void update(ConfigEntries cfg) {
+	/* Replaces the main job, the others inherit its new options */
+	synchronized void update(ConfigEntries cfg) {
 		log.debug("Updating config: '%s' to '%s'", this.cfg, cfg);
 
+		List<ConfigEntries> l = new ArrayList<>();
+		for (ConfigEntries job : jobs)
+			l.add(new ConfigEntries(job.name, job.lastBackup, job.destPath, job.freqDays,
+						job.keepDays, job.dirsToBackup, new Options(cfg.options, job.options.entries)));
 		this.cfg = cfg;
+		this.jobs = List.copyOf(l);
+		save();
+	}
+
+	/* Records the date of the last backup of a job */
+	synchronized void backedUp(String name, Date date) {
+		if (cfg.name.equals(name)) {
+			cfg = cfg.backedUp(date);
+		} else {
+			List<ConfigEntries> l = new ArrayList<>(jobs);
+			l.replaceAll(job -> job.name.equals(name) ? job.backedUp(date) : job);
+			jobs = List.copyOf(l);
+		}
+		save();
+	}
+
+	private void save() {
 		try {
 			write();
 		} catch (IOException e) {
@@ -63,30 +126,39 @@ class Config {
 		String entry[];
 		boolean readDirs = false;
 
-		Date lastBackup = null;
-		Path destPath = null;
-		int freqDays = 0;
-		int keepDays = 0;
-		List<Path> dirsToBackup = new ArrayList<>();
+		Section main = new Section("");
+		Section section = main;
+		List<Section> jobSections = new ArrayList<>();
 
 		try (BufferedReader r = Files.newBufferedReader(configPath)) {
 			while ((line = r.readLine()) != null) {
+				String raw = line;
+				String trimmed = line.trim();
+				if (trimmed.startsWith(JOB_PREFIX) && trimmed.endsWith("]")) {
+					section = new Section(trimmed.substring(JOB_PREFIX.length(), trimmed.length() - 1).trim());
+					section.lines.add(raw);
+					jobSections.add(section);
+					readDirs = false;
+					continue;
+				}
 				if (readDirs) {
-					dirsToBackup.add(Path.of(line));
+					main.dirs.add(Path.of(line));
 					continue;
 				}
 
-				line = line.trim();
-				if (line.isEmpty() || line.startsWith("#"))
-					continue;
-				if (line.equals("[Directories]")) {
+				line = trimmed;
+				if (line.equals(DIRECTORIES)) {
 					readDirs = true;
 					continue;
 				}
+				section.lines.add(raw);
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
 
 				entry = line.split("=", 2);
 				if (entry.length != 2) {
 					log.error(i18n("error.Invalid_cfg_no_value"), entry[0]);
+					section.ignored.add(raw);
 					continue;
 				}
 				entry[0] = entry[0].trim();
@@ -95,47 +167,102 @@ class Config {
 				switch (entry[0]) {
 				case "lastBackup":
 					try {
-						lastBackup = new Date(entry[1]);
+						section.lastBackup = new Date(entry[1]);
 					} catch (DateTimeException e) {
 						log.error(i18n("error.Invalid_cfg_date"), entry[0], entry[1]);
+						section.ignored.add(raw);
 					}
 					break;
 				case "destPath":
+				case "source":
 					try {
-						destPath = Path.of(entry[1]);
+						Path path = Path.of(entry[1]);
+						if (entry[0].equals("source"))
+							section.dirs.add(path);
+						else
+							section.destPath = path;
 					} catch (InvalidPathException e) {
 						log.error(i18n("error.Invalid_cfg_path"), entry[0], entry[1]);
+						section.ignored.add(raw);
 					}
 					break;
 				case "freqDays":
+				case "keepDays":
+					int days = -1;
 					try {
-						freqDays = Integer.parseInt(entry[1]);
+						days = Integer.parseInt(entry[1]);
 					} catch (NumberFormatException e) {
+						/* as a negative one */
+					}
+					if (days < 0) {
 						log.error(i18n("error.Invalid_cfg_number"), entry[0], entry[1]);
+						section.ignored.add(raw);
+					} else if (entry[0].equals("freqDays")) {
+						section.freqDays = days;
+					} else {
+						section.keepDays = days;
 					}
 					break;
-				case "keepDays":
+				default:
+					if (!Options.isKnown(entry[0])) {
+						log.error(i18n("error.Unknown_cfg"), entry[0], entry[1]);
+						section.ignored.add(raw);
+						break;
+					}
+					/* Options are checked one by one, so a wrong one only leaves itself out */
 					try {
-						keepDays = Integer.parseInt(entry[1]);
-					} catch (NumberFormatException e) {
-						log.error("error.Invalid_cfg_number", entry[0], entry[1]);
+						new Options(Map.of(entry[0], entry[1]));
+						section.options.put(entry[0], entry[1]);
+					} catch (IllegalArgumentException e) {
+						log.error(i18n("error.Discarding_invalid_cfg"), e.getMessage());
+						section.ignored.add(raw);
 					}
-					break;
-				default:
-					log.error(i18n("error.Unknown_cfg"), entry[0], entry[1]);
 				}
 			}
 		}
 
-		try {
-			cfg = new ConfigEntries(lastBackup, destPath, freqDays, keepDays, dirsToBackup);
-		} catch (IllegalArgumentException e) {
-			log.error(i18n("error.Discarding_invalid_cfg"), e.getMessage());
+		cfg = new ConfigEntries("", main.lastBackup, main.destPath, main.freqDays, main.keepDays,
+				main.dirs, new Options(main.options));
+		ignoredLines.clear();
+		ignoredJobs.clear();
+		ignoredLines.put("", main.ignored);
+
+		List<ConfigEntries> l = new ArrayList<>();
+		for (Section job : jobSections) {
+			try {
+				ConfigEntries entries = new ConfigEntries(job.name, job.lastBackup, job.destPath,
+						job.freqDays, job.keepDays, job.dirs, new Options(cfg.options, job.options));
+				checkJob(entries, l);
+				l.add(entries);
+				ignoredLines.put(job.name, job.ignored);
+			} catch (IllegalArgumentException e) {
+				log.error(i18n("error.Discarding_invalid_job"), job.name, e.getMessage());
+				while (job.lines.get(job.lines.size() - 1).isBlank())
+					job.lines.remove(job.lines.size() - 1);
+				ignoredJobs.add(job.lines);
+			}
 		}
+		jobs = List.copyOf(l);
 
 		log.debug("END Reading config");
 	}
 
+	/* A job needs a name and a destination of its own */
+	private void checkJob(ConfigEntries job, List<ConfigEntries> others) {
+		if (job.name.isEmpty())
+			throw new IllegalArgumentException("the job has no name");
+		if (job.destPath == null)
+			throw new IllegalArgumentException("'destPath' is missing");
+		if (job.destPath.equals(cfg.destPath))
+			throw new IllegalArgumentException("'destPath' is the one of the main job");
+		for (ConfigEntries other : others) {
+			if (other.name.equals(job.name))
+				throw new IllegalArgumentException("there is another job with this name");
+			if (other.destPath.equals(job.destPath))
+				throw new IllegalArgumentException("'destPath' is the one of job '" + other.name + "'");
+		}
+	}
+
 	private void write() throws IOException {
 		log.debug("Writing config: '%s'", configPath);
 
@@ -152,9 +279,33 @@ class Config {
 				w.write(String.format("destPath=%s%n", cfg.destPath));
 			w.write(String.format("freqDays=%d%n", cfg.freqDays));
 			w.write(String.format("keepDays=%d%n", cfg.keepDays));
+			for (Map.Entry<String,String> e : cfg.options.entries.entrySet())
+				w.write(String.format("%s=%s%n", e.getKey(), e.getValue()));
+			for (String line : ignoredLines.getOrDefault("", List.of()))
+				w.write(String.format("%s%n", line));
+
+			for (ConfigEntries job : jobs) {
+				w.write(String.format("%n%s%s]%n", JOB_PREFIX, job.name));
+				if (job.lastBackup != null)
+					w.write(String.format("lastBackup=%s%n", job.lastBackup));
+				w.write(String.format("destPath=%s%n", job.destPath));
+				w.write(String.format("freqDays=%d%n", job.freqDays));
+				w.write(String.format("keepDays=%d%n", job.keepDays));
+				for (Map.Entry<String,String> e : job.options.entries.entrySet())
+					w.write(String.format("%s=%s%n", e.getKey(), e.getValue()));
+				for (Path dir : job.dirsToBackup)
+					w.write(String.format("source=%s%n", dir));
+				for (String line : ignoredLines.getOrDefault(job.name, List.of()))
+					w.write(String.format("%s%n", line));
+			}
+			for (List<String> lines : ignoredJobs) {
+				w.write(String.format("%n"));
+				for (String line : lines)
+					w.write(String.format("%s%n", line));
+			}
 
 			if (!cfg.dirsToBackup.isEmpty()) {
-				w.write(String.format("%n[Directories]%n"));
+				w.write(String.format("%n%s%n", DIRECTORIES));
 				for (Path dir : cfg.dirsToBackup)
 					w.write(String.format("%s%n", dir));
 			}
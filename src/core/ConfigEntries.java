@@ -4,19 +4,27 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
+/* Settings of a backup job, the main one (named "") or one of a [Job name] section */
 public class ConfigEntries {
+	public final String name;
 	public final Date lastBackup;
 	public final Path destPath;
 	public final int freqDays; /* zero is auto backup disabled */
 	public final int keepDays; /* zero is forever */
 	public final List<Path> dirsToBackup;
+	public final Options options;
 
 	public ConfigEntries(
+			String name,
 			Date lastBackup,
 			Path destPath,
 			int freqDays,
 			int keepDays,
-			List<Path> dirsToBackup) {
+			List<Path> dirsToBackup,
+			Options options) {
+		this.name = name.trim();
+		if (!this.name.equals(name) || name.contains("]"))
+			throw new IllegalArgumentException("Invalid job name: '" + name + "'");
 		this.lastBackup = lastBackup;
 		this.destPath = destPath == null ? null : destPath.normalize().toAbsolutePath();
 		if (freqDays < 0)
@@ -30,18 +38,55 @@ public class ConfigEntries {
 		l.replaceAll(Path::normalize);
 		l.replaceAll(Path::toAbsolutePath);
 		this.dirsToBackup = List.copyOf(l);
+
+		this.options = options;
+	}
+
+	public ConfigEntries(
+			Date lastBackup,
+			Path destPath,
+			int freqDays,
+			int keepDays,
+			List<Path> dirsToBackup,
+			Options options) {
+		this("", lastBackup, destPath, freqDays, keepDays, dirsToBackup, options);
+	}
+
+	public ConfigEntries(
+			Date lastBackup,
+			Path destPath,
+			int freqDays,
+			int keepDays,
+			List<Path> dirsToBackup) {
+		this(lastBackup, destPath, freqDays, keepDays, dirsToBackup, new Options());
 	}
 
 	public ConfigEntries() {
 		this(null, null, 0, 0, new ArrayList<>());
 	}
 
+	public boolean isMain() {
+		return name.isEmpty();
+	}
+
+	/* Run by the scheduler, every freqDays or at the times of a 'schedule' */
+	public boolean isAutomatic() {
+		return freqDays > 0 || options.schedule != null;
+	}
+
+	/* The same settings after a backup at date */
+	ConfigEntries backedUp(Date date) {
+		return new ConfigEntries(name, date, destPath, freqDays, keepDays, dirsToBackup, options);
+	}
+
 	@Override
 	public String toString() {
 		return ConfigEntries.class.getName() + "[" +
+			"name=" + name + "," +
 			"lastBackup=" + lastBackup + "," +
 			"destPath=" + destPath + "," +
 			"freqDays=" + freqDays + "," +
-			"keepDays=" + keepDays + "]";
+			"keepDays=" + keepDays + "," +
+			"options=" + options + "]";
 	}
 }
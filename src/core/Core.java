@@ -1,23 +1,74 @@
 package core;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import static core.I18n.i18n;
 
+/*
+ * Backup jobs run on a pool of parallelJobs threads, each job at most once
+ * at a time, so jobs writing to different disks go on side by side.
+ */
 public class Core {
 	private final Path appPath;
 
 	private final Log log;
 	private final Config config;
 	private final Backup backup;
+	private final Restore restore;
+	private final Throttle throttle = new Throttle();
 	private final Runnable runAfterAutoBackup;
-	private volatile boolean isBackupInProgress;
-	private volatile Timer backupTimer;
+	private final ThreadPoolExecutor jobPool;
+	private final Map<String,AtomicBoolean> running = new ConcurrentHashMap<>(); /* by job name */
+	private final Scheduler scheduler;
+	private volatile Metrics backupMetrics;
+	private volatile Metrics verifyMetrics;
+
+	/* Sums the progress of the jobs run together for one listener */
+	private static class JobsProgress {
+		private final ProgressListener listener;
+		private final long progress[][]; /* by job: files done, total, bytes done, total, 1 if final */
+
+		JobsProgress(ProgressListener listener, int jobs) {
+			this.listener = listener;
+			this.progress = new long[jobs][5];
+		}
+
+		ProgressListener of(int job) {
+			return (filesDone, filesTotal, bytesDone, bytesTotal, totalKnown) ->
+				update(job, new long[] { filesDone, filesTotal, bytesDone, bytesTotal, totalKnown ? 1 : 0 });
+		}
+
+		private synchronized void update(int job, long p[]) {
+			progress[job] = p;
+			long sum[] = new long[4];
+			boolean totalKnown = true;
+			for (long q[] : progress) {
+				for (int i = 0; i < sum.length; i++)
+					sum[i] += q[i];
+				totalKnown &= q[4] != 0;
+			}
+			listener.progress(sum[0], sum[1], sum[2], sum[3], totalKnown);
+		}
+	}
 
 	public Core(Runnable runAfterAutoBackup) {
 		String appDirname = ".dumback";
@@ -34,135 +85,355 @@ public class Core {
 
 		log = new Log(appPath.resolve("dumback.log"));
 		config = new Config(appPath.resolve("dumback.cfg"), log);
-		backup = new Backup(log);
+		log.setLevel(Log.Level.valueOf(config.cfg.options.logLevel.name()));
+		throttle.set(config.cfg.options);
+		backup = new Backup(log, appPath.resolve("verify.cache"), throttle);
+		restore = new Restore(log);
+
+		int parallelJobs = config.cfg.options.parallelJobs;
+		jobPool = new ThreadPoolExecutor(parallelJobs, parallelJobs, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, "dumback-job");
+					t.setDaemon(true);
+					return t;
+				});
+		jobPool.allowCoreThreadTimeOut(true);
 
 		this.runAfterAutoBackup = runAfterAutoBackup;
-		isBackupInProgress = false;
+		scheduler = new Scheduler(log, appPath.resolve(Scheduler.STATE_FILENAME), this::getJobs,
+				jobPool, job -> autoBackup(job.name));
 		initAutoBackup();
 
 		log.debug("Dumback is initialized");
 	}
 
+	/* The main job, the one set from the menus */
 	public ConfigEntries getConfig() {
 		return config.cfg;
 	}
 
+	/* The jobs with a destination: the main one, if set, then those of [Job name] sections */
+	public List<ConfigEntries> getJobs() {
+		List<ConfigEntries> jobs = new ArrayList<>();
+		ConfigEntries cfg = config.cfg;
+		if (cfg.destPath != null)
+			jobs.add(cfg);
+		jobs.addAll(config.jobs);
+		return jobs;
+	}
+
+	public boolean isBackupInProgress() {
+		for (AtomicBoolean b : running.values())
+			if (b.get())
+				return true;
+		return false;
+	}
+
 	public void updateConfig(ConfigEntries cfg) {
-		if (isBackupInProgress) {
+		if (isBackupInProgress()) {
 			log.error(i18n("error.Backup_in_progress_cant_update_cfg"));
 			return;
 		}
 
 		config.update(cfg);
-		if (cfg.freqDays > 0) {
+		log.setLevel(Log.Level.valueOf(cfg.options.logLevel.name()));
+		resizeJobPool(cfg.options.parallelJobs);
+		throttle.set(cfg.options);
+		if (cfg.freqDays > 0)
 			log.info(i18n("info.Auto_backup_enabled"), cfg.freqDays);
-			initAutoBackup();
-		} else {
-			stopAutoBackup();
-		}
+		initAutoBackup();
 	}
 
+	/* Backs up every job, waiting for all of them */
 	public void backup() {
-		if (isBackupInProgress) {
-			log.error(i18n("error.Backup_in_progress_cant_backup"));
+		backup(null, null);
+	}
+
+	/*
+	 * Both listener and cancel may be null, a cancelled backup is not
+	 * recorded.  The listener is given the sum of the progress of the jobs.
+	 */
+	public void backup(ProgressListener listener, CancellationToken cancel) {
+		List<ConfigEntries> jobs = getJobs();
+
+		if (jobs.isEmpty()) {
+			log.error(i18n("error.Configure_dest_dir"));
 			return;
 		}
 
-		ConfigEntries cfg = getConfig();
+		runJobs(jobs, listener, cancel);
+	}
 
-		if (cfg.destPath == null) {
-			log.error(i18n("error.Configure_dest_dir"));
+	/* Backs up one job, false if there is none by that name */
+	public boolean backup(String job, ProgressListener listener, CancellationToken cancel) {
+		for (ConfigEntries cfg : getJobs()) {
+			if (cfg.name.equals(job)) {
+				runJobs(List.of(cfg), listener, cancel);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void runJobs(List<ConfigEntries> jobs, ProgressListener listener, CancellationToken cancel) {
+		JobsProgress progress = listener != null ? new JobsProgress(listener, jobs.size()) : null;
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < jobs.size(); i++) {
+			ConfigEntries job = jobs.get(i);
+			ProgressListener jobListener = progress != null ? progress.of(i) : null;
+			futures.add(jobPool.submit(() -> backupJob(job, jobListener, cancel)));
+		}
+
+		RuntimeException failure = null;
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause() instanceof RuntimeException r ? r : new RuntimeException(e.getCause());
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private void backupJob(ConfigEntries job, ProgressListener listener, CancellationToken cancel) {
+		AtomicBoolean lock = running.computeIfAbsent(job.name, name -> new AtomicBoolean());
+		if (!lock.compareAndSet(false, true)) {
+			log.error(i18n("error.Backup_in_progress_cant_backup"));
 			return;
 		}
 
-		isBackupInProgress = true;
 		try {
-			backup.create(cfg.destPath, cfg.dirsToBackup);
-			log.info(i18n("info.Backup_success"));
-		} catch (IOException e) {
-			String message = i18n("error.Couldnt_create_archive_in",
-					cfg.destPath, e.getMessage());
-			log.error("%s", message);
-		}
-		config.update(new ConfigEntries(
-					new Date(),
-					cfg.destPath,
-					cfg.freqDays,
-					cfg.keepDays,
-					cfg.dirsToBackup
-					));
-		if (cfg.keepDays > 0)
-			backup.deleteOld(cfg.destPath, cfg.keepDays);
-		isBackupInProgress = false;
+			if (!job.isMain())
+				log.info(i18n("info.Job_starting"), job.name);
+			Metrics metrics = startMetrics(Metrics.Operation.BACKUP, job.name);
+			try {
+				int skipped = backup.create(job.destPath, job.dirsToBackup, job.options,
+						metrics, new Progress(listener, cancel));
+				if (skipped > 0)
+					log.error(i18n("error.Backup_skipped_files"), skipped);
+				else if (job.isMain())
+					log.info(i18n("info.Backup_success"));
+				else
+					log.info(i18n("info.Job_success"), job.name);
+			} catch (IOException e) {
+				String message = i18n("error.Couldnt_create_archive_in",
+						job.destPath, e.getMessage());
+				log.error("%s", message);
+			} catch (CancellationException e) {
+				log.info(i18n("info.Backup_cancelled"));
+				return;
+			}
+			metrics.end();
+			config.backedUp(job.name, new Date());
+			long start = System.nanoTime();
+			backup.deleteOld(job.destPath, job.keepDays, job.options);
+			metrics.retention(System.nanoTime() - start);
+			saveMetrics(metrics);
+		} finally {
+			lock.set(false);
+		}
 	}
 
+	/* Of the backups of every job, null if no destination exists yet */
 	public Map<Path,Boolean> checkIntegrity() {
-		ConfigEntries cfg = getConfig();
+		Map<Path,Boolean> result = null;
+		for (ConfigEntries job : getJobs()) {
+			Map<Path,Boolean> r = checkIntegrity(job);
+			if (r == null)
+				continue;
+			if (result == null)
+				result = new LinkedHashMap<>();
+			result.putAll(r);
+		}
+		return result;
+	}
 
-		if (cfg.destPath == null || !Files.exists(cfg.destPath))
+	private Map<Path,Boolean> checkIntegrity(ConfigEntries job) {
+		if (job.destPath == null || !Files.exists(job.destPath))
 			return null;
 
+		Metrics metrics = startMetrics(Metrics.Operation.VERIFY, job.name);
 		try {
-			return backup.checkIntegrity(cfg.destPath);
+			return backup.checkIntegrity(job.destPath, job.options, metrics);
 		} catch (Exception e) {
 			log.error(i18n("error.When_verifying_integrity"), e.getMessage());
 			return null;
+		} finally {
+			metrics.end();
+			saveMetrics(metrics);
 		}
 	}
 
-	public void initAutoBackup() {
-		ConfigEntries cfg = getConfig();
+	/* The limits of the backups, which can be changed while they run */
+	public Throttle getThrottle() {
+		return throttle;
+	}
 
-		if (backupTimer != null)
-			backupTimer.cancel();
+	/* The last or current backup, null if there was none since the start */
+	public Metrics getBackupMetrics() {
+		return backupMetrics;
+	}
 
-		if (cfg.destPath == null || cfg.freqDays <= 0)
-			return;
+	/* The last or current verification, null if there was none since the start */
+	public Metrics getVerifyMetrics() {
+		return verifyMetrics;
+	}
+
+	/* ZIP backups and dedup snapshots of every job, newest first; a volume set is one */
+	public List<Path> listBackups() {
+		List<Path> backups = new ArrayList<>();
+		for (ConfigEntries job : getJobs()) {
+			if (!Files.exists(job.destPath))
+				continue;
+			try {
+				backups.addAll(Restore.backups(job.destPath));
+			} catch (IOException e) {
+				log.error(i18n("error.Failed_to_access"), job.destPath, e.getMessage());
+			}
+		}
+		backups.sort(Comparator.comparing(Path::getFileName).reversed());
+		return backups;
+	}
+
+	public List<ArchiveEntry> listBackup(Path archive) {
+		try {
+			return restore.list(archive);
+		} catch (IOException e) {
+			log.error(i18n("error.Failed_to_access"), archive, e.getMessage());
+			return null;
+		}
+	}
 
-		backupTimer = new Timer();
-		long initialDelay = 1000;
-		final long daysInMs = 86400000L;
-		final long periodicDelay = cfg.freqDays * daysInMs;
-
-		if (cfg.lastBackup != null) {
-			long daysPassed = cfg.lastBackup.daysBetween(new Date());
-			if (daysPassed < cfg.freqDays)
-				initialDelay = (cfg.freqDays - daysPassed) * daysInMs;
-		}
-
-		log.debug("Automatic backup delays: initial: %d ms;  periodic: %d ms", initialDelay, periodicDelay);
-
-		backupTimer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				try {
-					if (isBackupInProgress)
-						return;
-
-					log.info(i18n("info.Auto_backup_starting"));
-					backup();
-
-					Map<Path,Boolean> result = checkIntegrity();
-					if (result != null)
-						result.forEach((bak, isValid) -> {
-							if (!isValid)
-								log.error(i18n("error.File_appear_corrupted"), bak);
-						});
-				} catch (Exception e) {
-					log.error(i18n("error.Auto_backup_failed"), e.getMessage());
-				} finally {
-					if (runAfterAutoBackup != null)
-						runAfterAutoBackup.run();
-				}
+	/* The newest backup of any job with the file or directory at path (as named in the archives) */
+	public Path findNewestBackup(String path) {
+		Path newest = null;
+		for (ConfigEntries job : getJobs()) {
+			if (!Files.exists(job.destPath))
+				continue;
+			try {
+				Path found = restore.findNewest(job.destPath, path);
+				if (found != null && (newest == null || found.getFileName().compareTo(newest.getFileName()) > 0))
+					newest = found;
+			} catch (IOException e) {
+				log.error(i18n("error.Failed_to_access"), job.destPath, e.getMessage());
+			}
+		}
+		return newest;
+	}
 
+	/* Every version of the file or directory at path in the backups of every job, newest first */
+	public List<FileVersion> findVersions(String path) {
+		List<FileVersion> versions = new ArrayList<>();
+		for (ConfigEntries job : getJobs()) {
+			if (!Files.exists(job.destPath))
+				continue;
+			try {
+				versions.addAll(restore.findVersions(job.destPath, path));
+			} catch (IOException e) {
+				log.error(i18n("error.Failed_to_access"), job.destPath, e.getMessage());
 			}
-		}, initialDelay, periodicDelay);
+		}
+		versions.sort(Comparator.comparing((FileVersion v) -> v.archive.getFileName()).reversed());
+		return versions;
+	}
+
+	/* Restores the file or directory at path (everything when blank), returns how many files or -1 */
+	public int restore(Path archive, String path, Path targetDir) {
+		log.debug("Restoring '%s' from '%s' into '%s'", path, archive, targetDir);
+		try {
+			int count = restore.extract(archive, path, targetDir);
+			if (count == 0)
+				log.error(i18n("error.Not_in_backup"), path, archive);
+			else
+				log.info(i18n("info.Restored"), count, targetDir);
+			return count;
+		} catch (IOException e) {
+			log.error(i18n("error.Couldnt_restore"), archive, e.getMessage());
+			return -1;
+		}
+	}
+
+	/* The new metrics replace the previous ones of the operation and job, in JMX too */
+	private Metrics startMetrics(Metrics.Operation operation, String job) {
+		Metrics metrics = new Metrics(operation, job);
+		if (operation == Metrics.Operation.BACKUP)
+			backupMetrics = metrics;
+		else
+			verifyMetrics = metrics;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("dumback:type=Metrics,operation="
+					+ operation.name().toLowerCase()
+					+ (job.isEmpty() ? "" : ",job=" + ObjectName.quote(job)));
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(metrics, name);
+		} catch (JMException e) {
+			log.debug("Couldn't register the metrics MBean: %s", e);
+		}
+		return metrics;
+	}
+
+	private void saveMetrics(Metrics metrics) {
+		log.debug("%s", metrics);
+		Path history = appPath.resolve(Metrics.HISTORY_FILENAME);
+		try {
+			metrics.appendTo(history);
+		} catch (IOException e) {
+			log.error(i18n("error.Couldnt_write"), history, e.getMessage());
+		}
+	}
+
+	/* Starts the scheduler, or makes it look at the settings again */
+	public void initAutoBackup() {
+		scheduler.start();
+	}
+
+	private void autoBackup(String name) {
+		try {
+			ConfigEntries job = null;
+			for (ConfigEntries cfg : getJobs())
+				if (cfg.name.equals(name))
+					job = cfg;
+			AtomicBoolean lock = running.get(name);
+			if (job == null || (lock != null && lock.get()))
+				return;
+
+			log.info(i18n("info.Auto_backup_starting"));
+			backupJob(job, null, null);
+
+			Map<Path,Boolean> result = checkIntegrity(job);
+			if (result != null)
+				result.forEach((bak, isValid) -> {
+					if (!isValid)
+						log.error(i18n("error.File_appear_corrupted"), bak);
+				});
+		} catch (Exception e) {
+			log.error(i18n("error.Auto_backup_failed"), e.getMessage());
+		} finally {
+			if (runAfterAutoBackup != null)
+				runAfterAutoBackup.run();
+		}
+	}
+
+	private void resizeJobPool(int threads) {
+		if (threads > jobPool.getMaximumPoolSize()) {
+			jobPool.setMaximumPoolSize(threads);
+			jobPool.setCorePoolSize(threads);
+		} else {
+			jobPool.setCorePoolSize(threads);
+			jobPool.setMaximumPoolSize(threads);
+		}
 	}
 
 	public void stopAutoBackup() {
-		if (backupTimer != null)
-			backupTimer.cancel();
-		backupTimer = null;
+		scheduler.stop();
 	}
 
 	public void die(String message, Object... args) {
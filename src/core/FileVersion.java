@@ -0,0 +1,25 @@
+package core;
+
+import java.nio.file.Path;
+
+/* A version of a file in a ZIP backup, as found in the catalog of its destination */
+public class FileVersion {
+	public final Path archive;
+	public final String name;
+	public final long size;
+	public final long mtime;
+	public final long crc;
+
+	FileVersion(Path archive, String name, long size, long mtime, long crc) {
+		this.archive = archive;
+		this.name = name;
+		this.size = size;
+		this.mtime = mtime;
+		this.crc = crc;
+	}
+
+	@Override
+	public String toString() {
+		return archive.getFileName() + ": " + name;
+	}
+}
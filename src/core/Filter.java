@@ -0,0 +1,133 @@
+package core;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * What the source walk leaves out, compiled once from the 'exclude' and
+ * 'include' globs and the 'maxFileMB' and 'maxAgeDays' limits.  A glob
+ * without a slash matches the name of a file or directory at any depth,
+ * one with a slash its path from the source directory ('**' goes through
+ * directories); a trailing slash only matches directories.  An excluded
+ * directory is not listed at all.  When there are includes, a file must
+ * match one of them or be in a directory that does; they do not prune.
+ *
+ * Rules are numbered in that order: excludes, includes (as one), size,
+ * age.  The first rule a file or directory is left out by is the one given.
+ */
+class Filter {
+	static class Glob {
+		final String text;
+		private final PathMatcher matcher;
+		private final boolean byName;
+		private final boolean dirsOnly;
+
+		private Glob(String text) {
+			this.text = text;
+			String g = text;
+			dirsOnly = g.endsWith("/");
+			while (g.endsWith("/"))
+				g = g.substring(0, g.length() - 1);
+			while (g.startsWith("/"))
+				g = g.substring(1);
+			if (g.isEmpty())
+				throw new IllegalArgumentException("has an empty pattern: '" + text + "'");
+			byName = !g.contains("/");
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + g); /* PatternSyntaxException is an IllegalArgumentException */
+		}
+
+		boolean matches(Path relative) {
+			return matcher.matches(byName ? relative.getFileName() : relative);
+		}
+	}
+
+	private final List<Glob> excludes;
+	private final List<Glob> includes;
+	private final long maxBytes; /* zero is no limit */
+	private final int maxAgeDays; /* zero is no limit */
+	private final List<String> rules = new ArrayList<>();
+	private final int includeRule;
+	private final int sizeRule;
+	private final int ageRule;
+
+	Filter(List<Glob> excludes, List<Glob> includes, int maxFileMB, int maxAgeDays) {
+		this.excludes = excludes;
+		this.includes = includes;
+		this.maxBytes = maxFileMB * 1024L * 1024;
+		this.maxAgeDays = maxAgeDays;
+
+		for (Glob g : excludes)
+			rules.add("exclude " + g.text);
+		includeRule = add(!includes.isEmpty(), "not included");
+		sizeRule = add(maxFileMB > 0, "maxFileMB=" + maxFileMB);
+		ageRule = add(maxAgeDays > 0, "maxAgeDays=" + maxAgeDays);
+	}
+
+	/* Comma separated globs */
+	static List<Glob> globs(String value) {
+		List<Glob> globs = new ArrayList<>();
+		for (String s : value.split(","))
+			if (!s.isBlank())
+				globs.add(new Glob(s.trim()));
+		return globs;
+	}
+
+	boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	int ruleCount() {
+		return rules.size();
+	}
+
+	String rule(int n) {
+		return rules.get(n);
+	}
+
+	/* The rule leaving out the directory at relative (from its source directory), -1 if none */
+	int excludesDir(Path relative) {
+		for (int i = 0; i < excludes.size(); i++)
+			if (excludes.get(i).matches(relative))
+				return i;
+		return -1;
+	}
+
+	/* The rule leaving out the file, -1 if none; now is in milliseconds */
+	int excludesFile(Path relative, BasicFileAttributes attrs, long now) {
+		for (int i = 0; i < excludes.size(); i++) {
+			Glob g = excludes.get(i);
+			if (!g.dirsOnly && g.matches(relative))
+				return i;
+		}
+		if (includeRule != -1 && !included(relative))
+			return includeRule;
+		if (sizeRule != -1 && attrs.size() > maxBytes)
+			return sizeRule;
+		if (ageRule != -1 && now - attrs.lastModifiedTime().toMillis() > maxAgeDays * 86400000L)
+			return ageRule;
+		return -1;
+	}
+
+	/* When the file or a directory it is in matches an include */
+	private boolean included(Path relative) {
+		for (Glob g : includes) {
+			if (!g.dirsOnly && g.matches(relative))
+				return true;
+			for (Path dir = relative.getParent(); dir != null; dir = dir.getParent())
+				if (g.matches(dir))
+					return true;
+		}
+		return false;
+	}
+
+	private int add(boolean set, String rule) {
+		if (!set)
+			return -1;
+		rules.add(rule);
+		return rules.size() - 1;
+	}
+}
@@ -0,0 +1,339 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import static core.I18n.i18n;
+
+/*
+ * Snapshot backend in the way of rsync --link-dest: a backup is a directory
+ * holding a copy of the source files, where those unchanged since the
+ * previous snapshot (same size and mtime) are hard links to its files, so
+ * they take no space and no time.  LIST_NAME, at the top of the directory,
+ * lists every file with its checksum, carried over for linked files; the
+ * checksum sidecar of the snapshot is that of the list.  A snapshot being
+ * written is '<snapshot>.part' and is deleted if the backup fails, or by
+ * the next one when the run was killed.
+ *
+ * List line: size TAB mtime TAB checksum TAB name
+ */
+class LinkSnapshot {
+	static final String SUFFIX = ".dir";
+	static final String LIST_NAME = ".dumback-files";
+	private static final String PART_SUFFIX = ".part";
+	private static final String HEADER = "# Dumback link snapshot ";
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private static class FileEntry {
+		long size;
+		long mtime;
+		String sum; /* null when the file could not be copied */
+		String name;
+	}
+
+	private final Log log;
+
+	LinkSnapshot(Log log) {
+		this.log = log;
+	}
+
+	static Path listPath(Path snapshot) {
+		return snapshot.resolve(LIST_NAME);
+	}
+
+	/*
+	 * The list goes through sum as it is written, files that cannot be read
+	 * go to onError.  Files are copied by threads threads, and fall back to
+	 * a copy when they cannot be linked (another file system, too many links).
+	 */
+	void create(Path snapshot, List<Path> sourceDirs, Path previousSnap, Options options,
+			Checksum sum, SourceScanner.ErrorHandler onError,
+			Metrics metrics, Progress progress, Throttle throttle) throws IOException {
+		Path part = snapshot.resolveSibling(snapshot.getFileName() + PART_SUFFIX);
+		deleteStaleSnapshots(snapshot.getParent());
+		Files.createDirectory(part);
+
+		Map<String,FileEntry> previous = new HashMap<>();
+		if (previousSnap != null) {
+			try {
+				for (FileEntry e : readList(previousSnap, options.checksum))
+					previous.put(e.name, e);
+				log.debug("Linking unchanged files to snapshot: '%s'", previousSnap);
+			} catch (IOException e) {
+				log.debug("Not linking to '%s': %s", previousSnap, e.getMessage());
+			}
+		}
+
+		int threads = options.threadCount();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "dumback-link");
+			t.setDaemon(true);
+			return t;
+		});
+		Deque<Future<FileEntry>> pending = new ArrayDeque<>();
+		boolean done = false;
+
+		try (BufferedWriter w = new BufferedWriter(new OutputStreamWriter(
+						sum.wrap(throttle.wrap(Files.newOutputStream(listPath(part)))), StandardCharsets.UTF_8));
+				SourceScanner scanner = new SourceScanner(sourceDirs, options.scanThreads, options.filter, onError)) {
+			w.write(HEADER + options.checksum);
+			w.newLine();
+			progress.scanning(scanner);
+
+			log.debug("Linking and copying:");
+			SourceScanner.Found found;
+			while ((found = scanner.next()) != null) {
+				progress.check();
+				metrics.scanned();
+				Path path = found.path;
+				FileEntry e = new FileEntry();
+				e.name = found.name;
+				e.size = found.attrs.size();
+				e.mtime = found.attrs.lastModifiedTime().toMillis();
+				Path target = resolve(part, e.name);
+				Files.createDirectories(target.getParent());
+
+				FileEntry old = previous.get(e.name);
+				if (old != null && old.size == e.size && old.mtime == e.mtime && link(target, previousSnap.resolve(e.name))) {
+					e.sum = old.sum;
+					pending.addLast(CompletableFuture.completedFuture(e));
+				} else {
+					log.debug(() -> "  " + e.name);
+					pending.addLast(pool.submit(() -> {
+						try {
+							e.sum = copy(path, target, e, options.checksum, metrics, throttle);
+						} catch (IOException ex) {
+							onError.failed(path, e.name, ex);
+							Files.deleteIfExists(target);
+						}
+						return e;
+					}));
+				}
+				while (pending.size() > threads * 4)
+					writeEntry(w, pending.removeFirst(), progress);
+			}
+			metrics.scanDone(scanner.walkEnd());
+			scanner.reportFiltered(log);
+			while (!pending.isEmpty())
+				writeEntry(w, pending.removeFirst(), progress);
+			done = true;
+		} finally {
+			for (Future<FileEntry> f : pending)
+				f.cancel(true);
+			pool.shutdownNow();
+			if (!done)
+				discard(part, pool);
+		}
+
+		Files.move(part, snapshot, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* Checks that every file of the snapshot is there and intact, verified must be thread-safe */
+	boolean verify(Path snapshot, Set<Object> verified, Verifier verifier) throws IOException {
+		String header = readHeader(snapshot);
+		Options.ChecksumAlgorithm algorithm;
+		try {
+			algorithm = Options.ChecksumAlgorithm.valueOf(header.substring(HEADER.length()));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown checksum algorithm: " + header);
+		}
+
+		/* A file linked from many snapshots is hashed once */
+		Map<FileEntry,Future<Boolean>> pending = new LinkedHashMap<>();
+		for (FileEntry e : readList(snapshot, algorithm)) {
+			pending.put(e, verifier.submitBlock(() -> {
+				Path path = resolve(snapshot, e.name);
+				BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+				if (attrs.size() != e.size)
+					return false;
+				Object key = attrs.fileKey() != null ? attrs.fileKey() + "\t" + e.sum : null;
+				if (key != null && verified.contains(key))
+					return true;
+				boolean valid = e.sum.equals(Backup.toHex(verifier.checksum(path, algorithm)));
+				if (valid && key != null)
+					verified.add(key);
+				return valid;
+			}));
+		}
+
+		boolean valid = true;
+		for (Map.Entry<FileEntry,Future<Boolean>> p : pending.entrySet()) {
+			boolean ok;
+			try {
+				ok = Verifier.get(p.getValue());
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				ok = false;
+			}
+			if (!ok) {
+				log.error(i18n("error.Snapshot_file_corrupted"), p.getKey().name, snapshot.getFileName());
+				valid = false;
+			}
+		}
+		return valid;
+	}
+
+	/* Deletes a snapshot or what is left of one; other snapshots keep their links */
+	static void deleteTree(Path dir) throws IOException {
+		if (!Files.exists(dir))
+			return;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			Iterator<Path> it = walk.sorted(Comparator.reverseOrder()).iterator();
+			while (it.hasNext())
+				Files.delete(it.next());
+		}
+	}
+
+	/* Snapshots left half written by a run that was killed */
+	private void deleteStaleSnapshots(Path dest) throws IOException {
+		try (Stream<Path> list = Files.list(dest)) {
+			Iterator<Path> it = list.iterator();
+			while (it.hasNext()) {
+				Path path = it.next();
+				if (path.getFileName().toString().endsWith(SUFFIX + PART_SUFFIX)) {
+					log.debug("Deleting unfinished snapshot: '%s'", path);
+					deleteTree(path);
+				}
+			}
+		}
+	}
+
+	/* Once the copying threads stopped, or a while */
+	private void discard(Path part, ExecutorService pool) {
+		try {
+			pool.awaitTermination(10, TimeUnit.SECONDS);
+			deleteTree(part);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.error(i18n("error.Failed_to_delete"), part, e.getMessage());
+		}
+	}
+
+	private boolean link(Path target, Path existing) {
+		try {
+			Files.createLink(target, existing);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			log.debug("Copying instead of linking '%s': %s", target, e.toString());
+			return false;
+		}
+	}
+
+	/* Copies the file, returns its checksum */
+	private static String copy(Path path, Path target, FileEntry e, Options.ChecksumAlgorithm algorithm,
+			Metrics metrics, Throttle throttle) throws IOException {
+		Checksum sum = new Checksum(algorithm);
+		byte buf[] = new byte[BUFFER_SIZE];
+		long size = 0;
+		try (InputStream in = throttle.wrap(Files.newInputStream(path));
+				OutputStream out = sum.wrap(throttle.wrap(Files.newOutputStream(target)))) {
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				if (Thread.interrupted())
+					throw new InterruptedIOException();
+				out.write(buf, 0, n);
+				size += n;
+			}
+		}
+		Files.setLastModifiedTime(target, FileTime.fromMillis(e.mtime));
+		e.size = size; /* it may have changed since it was found */
+		metrics.read(size);
+		metrics.written(size);
+		metrics.hashed(sum.wrapNanos());
+		return Backup.toHex(sum.digest());
+	}
+
+	private void writeEntry(BufferedWriter w, Future<FileEntry> f, Progress progress) throws IOException {
+		FileEntry e;
+		try {
+			e = f.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException(cause);
+		}
+		progress.done(e.sum != null ? e.size : 0);
+		if (e.sum == null)
+			return;
+
+		w.write(e.size + "\t" + e.mtime + "\t" + e.sum + "\t" + e.name);
+		w.newLine();
+	}
+
+	/* The path of an entry, which must stay inside the snapshot */
+	private static Path resolve(Path snapshot, String name) throws IOException {
+		Path root = snapshot.normalize();
+		Path path = root.resolve(name).normalize();
+		if (!path.startsWith(root) || path.equals(root) || name.equals(LIST_NAME))
+			throw new IOException("File outside of the snapshot: " + name);
+		return path;
+	}
+
+	private static String readHeader(Path snapshot) throws IOException {
+		try (BufferedReader r = Files.newBufferedReader(listPath(snapshot))) {
+			String line = r.readLine();
+			if (line == null || !line.startsWith(HEADER))
+				throw new IOException("Not a link snapshot: " + snapshot);
+			return line;
+		}
+	}
+
+	/* Entries of the list, which must be of the given algorithm */
+	private static List<FileEntry> readList(Path snapshot, Options.ChecksumAlgorithm algorithm) throws IOException {
+		List<FileEntry> entries = new ArrayList<>();
+		try (BufferedReader r = Files.newBufferedReader(listPath(snapshot))) {
+			String line = r.readLine();
+			if (!(HEADER + algorithm).equals(line))
+				throw new IOException("Not a link snapshot with " + algorithm + " checksums: " + snapshot);
+			while ((line = r.readLine()) != null) {
+				String f[] = line.split("\t", 4);
+				if (f.length != 4)
+					throw new IOException("Invalid snapshot line: " + line);
+				FileEntry e = new FileEntry();
+				try {
+					e.size = Long.parseLong(f[0]);
+					e.mtime = Long.parseLong(f[1]);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Invalid snapshot line: " + line, ex);
+				}
+				e.sum = f[2];
+				e.name = f[3];
+				entries.add(e);
+			}
+		}
+		return entries;
+	}
+}
@@ -1,32 +1,75 @@
 package core;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
 import static core.I18n.i18n;
 
-class Log {
+/*
+ * Messages are printed right away and appended to the log file by a
+ * background thread, which keeps the file open and writes whatever is
+ * queued at once.  When the file grows past ROTATION_SIZE it becomes
+ * dumback.log.1, the previous .1 becomes .2, and so on up to .ROTATIONS.
+ *
+ * Messages below the minimum level are dropped before being formatted.
+ * The level is the 'logLevel' setting, or the LEVEL_PROPERTY system
+ * property, which takes precedence.
+ */
+class Log implements Closeable {
 	enum Level { DEBUG, INFO, ERROR }
 
-	private static final long TRUNCATION_SIZE = 2*1024*1024;
+	static final String LEVEL_PROPERTY = "dumback.logLevel";
+
+	private static final long ROTATION_SIZE = 2*1024*1024;
+	private static final int ROTATIONS = 3;
+	private static final int QUEUE_SIZE = 8192;
 	private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 	private static final String INITIAL_MESSAGE = String.format("# Dumback log%n");
+	private static final Object END = new Object(); /* queued by close() */
 
 	private final Path logPath;
+	private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final Object queueLock = new Object(); /* nothing is queued after END */
+	private final Thread writer;
+	private FileChannel ch; /* of the writer thread once started */
+	private final boolean levelFromProperty;
+	private volatile Level minLevel = Level.INFO;
+	private boolean closed; /* guarded by queueLock */
 
 	Log(Path logPath) {
 		this.logPath = logPath;
 
+		String level = System.getProperty(LEVEL_PROPERTY);
+		boolean fromProperty = false;
+		if (level != null) {
+			try {
+				minLevel = Level.valueOf(level.trim().toUpperCase());
+				fromProperty = true;
+			} catch (IllegalArgumentException e) {
+				System.err.printf("LOG ERROR - Invalid %s: %s%n", LEVEL_PROPERTY, level);
+			}
+		}
+		levelFromProperty = fromProperty;
+
 		try {
-			if (!Files.exists(logPath))
-				Files.writeString(logPath, INITIAL_MESSAGE, StandardOpenOption.CREATE);
-			else if (Files.size(logPath) > TRUNCATION_SIZE)
-				truncateLog();
+			open();
+			if (ch.size() > ROTATION_SIZE)
+				rotate();
 		} catch (IOException e) {
 			String timestamp = LocalDateTime.now().format(TIMESTAMP_FORMAT);
 			String message = i18n("error.Couldnt_write",
@@ -34,12 +77,33 @@ class Log {
 			System.err.printf("[%s] LOG ERROR - %s%n", timestamp, message, e.getMessage());
 			throw new RuntimeException(message, e);
 		}
+
+		writer = new Thread(this::writeQueued, "dumback-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "dumback-log-flush"));
+	}
+
+	/* Ignored when the level was given by the system property */
+	void setLevel(Level level) {
+		if (!levelFromProperty)
+			minLevel = level;
+	}
+
+	boolean isEnabled(Level level) {
+		return level.compareTo(minLevel) >= 0;
 	}
 
 	void debug(String format, Object... args) {
 		log(Level.DEBUG, format, args);
 	}
 
+	/* For hot paths: the message is only built when debug is enabled */
+	void debug(Supplier<String> message) {
+		if (isEnabled(Level.DEBUG))
+			log(Level.DEBUG, "%s", message.get());
+	}
+
 	void info(String format, Object... args) {
 		log(Level.INFO, format, args);
 	}
@@ -48,46 +112,117 @@ class Log {
 		log(Level.ERROR, format, args);
 	}
 
+	/* Writes what is queued and stops the writer, later messages are only printed */
+	@Override
+	public void close() {
+		try {
+			synchronized (queueLock) {
+				if (closed)
+					return;
+				closed = true;
+				queue.put(END);
+			}
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	private void log(Level level, String format, Object... args) {
-		String timestamp = LocalDateTime.now().format(TIMESTAMP_FORMAT);
-		StringWriter sw = new StringWriter();
-		PrintWriter pw = new PrintWriter(sw);
-		String message;
+		if (!isEnabled(level))
+			return;
 
-		pw.printf("[%s] %-5s - %s%n", timestamp, level, String.format(format, args));
+		String timestamp = LocalDateTime.now().format(TIMESTAMP_FORMAT);
+		String message = String.format("[%s] %-5s - %s%n", timestamp, level, String.format(format, args));
 
 		if (level == Level.ERROR) {
-			if (args.length > 0 && args[args.length-1] instanceof Throwable)
+			if (args.length > 0 && args[args.length-1] instanceof Throwable) {
+				StringWriter sw = new StringWriter();
+				PrintWriter pw = new PrintWriter(sw);
+				pw.print(message);
 				((Throwable)args[args.length-1]).printStackTrace(pw);
-			pw.flush();
-			message = sw.toString();
+				pw.flush();
+				message = sw.toString();
+			}
 			System.err.print(message);
-		} else {
-			pw.flush();
-			message = sw.toString();
-			if (level == Level.INFO)
-				System.out.print(message);
+		} else if (level == Level.INFO) {
+			System.out.print(message);
 		}
 
 		try {
-			Files.writeString(logPath, message, StandardOpenOption.APPEND);
+			synchronized (queueLock) {
+				if (!closed)
+					queue.put(message);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeQueued() {
+		List<Object> batch = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		boolean end = false;
+
+		while (!end) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch);
+
+			sb.setLength(0);
+			for (Object message : batch) {
+				if (message == END) {
+					end = true;
+					break;
+				}
+				sb.append(message);
+			}
+			batch.clear();
+
+			try {
+				ByteBuffer buf = StandardCharsets.UTF_8.encode(sb.toString());
+				while (buf.hasRemaining())
+					ch.write(buf);
+				if (ch.size() > ROTATION_SIZE)
+					rotate();
+			} catch (IOException e) {
+				String timestamp = LocalDateTime.now().format(TIMESTAMP_FORMAT);
+				System.err.printf("[%s] LOG ERROR - %s%n",
+						timestamp, e.getMessage());
+			}
+		}
+
+		try {
+			ch.close();
 		} catch (IOException e) {
-			System.err.printf("[%s] LOG ERROR - %s%n",
-					timestamp, e.getMessage());
 		}
 	}
 
-	private void truncateLog() throws IOException {
-		String content = Files.readString(logPath);
-		int keep = (int)Math.min(content.length(), TRUNCATION_SIZE / 2);
-		int start = content.lastIndexOf('\n', content.length() - keep);
+	private void open() throws IOException {
+		ch = FileChannel.open(logPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		if (ch.size() == 0)
+			ch.write(StandardCharsets.UTF_8.encode(INITIAL_MESSAGE));
+	}
 
-		String truncated = INITIAL_MESSAGE;
-		if (start == -1)
-			truncated += content;
-		else
-			truncated += content.substring(start + 1);
+	private void rotate() throws IOException {
+		ch.close();
+		try {
+			for (int i = ROTATIONS - 1; i >= 1; i--) {
+				Path older = rotated(i);
+				if (Files.exists(older))
+					Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(logPath, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			open();
+		}
+	}
 
-		Files.writeString(logPath, truncated, StandardOpenOption.TRUNCATE_EXISTING);
+	private Path rotated(int n) {
+		return logPath.resolveSibling(logPath.getFileName() + "." + n);
 	}
 }
@@ -0,0 +1,86 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Size, modification time and CRC-32 of every file in the last backup,
+ * kept next to the archives to know what an incremental backup must hold.
+ */
+class Manifest {
+	static final String FILENAME = "dumback.manifest";
+	private static final String HEADER = "# Dumback manifest";
+
+	static class Entry {
+		final long size;
+		final long mtime;
+		final long crc;
+
+		Entry(long size, long mtime, long crc) {
+			this.size = size;
+			this.mtime = mtime;
+			this.crc = crc;
+		}
+	}
+
+	String lastArchive;
+	int chainLength; /* archives since the last full one, itself included */
+	final Map<String,Entry> entries = new ConcurrentHashMap<>(); /* put by the workers of a volume set */
+
+	void put(String name, long size, long mtime, long crc) {
+		entries.put(name, new Entry(size, mtime, crc));
+	}
+
+	static Manifest read(Path path) throws IOException {
+		Manifest m = new Manifest();
+		try (BufferedReader r = Files.newBufferedReader(path)) {
+			String line = r.readLine();
+			if (!HEADER.equals(line))
+				throw new IOException("Not a manifest: " + path);
+			m.lastArchive = value(r.readLine(), "last=");
+			try {
+				m.chainLength = Integer.parseInt(value(r.readLine(), "chain="));
+				while ((line = r.readLine()) != null) {
+					String f[] = line.split("\t", 4);
+					if (f.length != 4)
+						throw new IOException("Invalid manifest line: " + line);
+					m.put(f[3], Long.parseLong(f[0]), Long.parseLong(f[1]), Long.parseLong(f[2], 16));
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid manifest: " + path, e);
+			}
+		}
+		return m;
+	}
+
+	/* Replaces the file only when it was completely written */
+	void write(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (BufferedWriter w = Files.newBufferedWriter(tmp)) {
+			w.write(HEADER);
+			w.newLine();
+			w.write("last=" + lastArchive);
+			w.newLine();
+			w.write("chain=" + chainLength);
+			w.newLine();
+			for (Map.Entry<String,Entry> e : entries.entrySet()) {
+				Entry v = e.getValue();
+				w.write(v.size + "\t" + v.mtime + "\t" + Long.toHexString(v.crc) + "\t" + e.getKey());
+				w.newLine();
+			}
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String value(String line, String key) throws IOException {
+		if (line == null || !line.startsWith(key))
+			throw new IOException("Missing '" + key + "' in manifest");
+		return line.substring(key.length());
+	}
+}
@@ -0,0 +1,224 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Numbers about one backup or verification.  They are updated as it runs,
+ * so JMX shows the one in progress, and appended to the history file when
+ * it is over.  Scanning overlaps compression: scan is the time until the
+ * walk was over, compress and hash are the time spent in them summed over
+ * the threads.  Total is the time of the backup itself, retention (the
+ * deletion of old backups) comes after it.
+ *
+ * History line, tab separated, the columns named by HISTORY_COLUMNS; job
+ * is empty for the main backup job.
+ */
+public class Metrics implements MetricsMBean {
+	static final String HISTORY_FILENAME = "metrics.tsv";
+	private static final String HISTORY_HEADER = "# Dumback metrics";
+	private static final String HISTORY_COLUMNS = String.join("\t",
+			"started", "operation", "files", "skipped", "bytesRead", "bytesWritten",
+			"ratio", "filesPerSecond", "mbPerSecond", "totalMs", "scanMs",
+			"compressMs", "hashMs", "retentionMs", "bytesVerified", "verifyMBPerSecond", "job");
+
+	public enum Operation { BACKUP, VERIFY }
+
+	public final Operation operation;
+	public final String job;
+	private final Instant started = Instant.now();
+	private final long startNanos = System.nanoTime();
+
+	private final LongAdder filesScanned = new LongAdder();
+	private final LongAdder filesSkipped = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder bytesVerified = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder hashNanos = new LongAdder();
+	private volatile long scanNanos;
+	private volatile long totalNanos = -1;
+	private volatile long retentionNanos;
+
+	Metrics(Operation operation, String job) {
+		this.operation = operation;
+		this.job = job;
+	}
+
+	Metrics(Operation operation) {
+		this(operation, "");
+	}
+
+	void scanned() {
+		filesScanned.increment();
+	}
+
+	void skipped() {
+		filesSkipped.increment();
+	}
+
+	void read(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void written(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	void verified(long bytes) {
+		bytesVerified.add(bytes);
+	}
+
+	void compressed(long nanos) {
+		compressNanos.add(nanos);
+	}
+
+	void hashed(long nanos) {
+		hashNanos.add(nanos);
+	}
+
+	/* endNanos is the System.nanoTime() at the end of the walk */
+	void scanDone(long endNanos) {
+		scanNanos = endNanos - startNanos;
+	}
+
+	void end() {
+		totalNanos = System.nanoTime() - startNanos;
+	}
+
+	void retention(long nanos) {
+		retentionNanos = nanos;
+	}
+
+	@Override
+	public String getOperation() {
+		return operation.name();
+	}
+
+	@Override
+	public String getJob() {
+		return job;
+	}
+
+	@Override
+	public String getStarted() {
+		return started.toString();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return totalNanos < 0;
+	}
+
+	@Override
+	public long getFilesScanned() {
+		return filesScanned.sum();
+	}
+
+	@Override
+	public long getFilesSkipped() {
+		return filesSkipped.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/* Bytes read for every byte written, zero when nothing was written */
+	@Override
+	public double getCompressionRatio() {
+		long written = getBytesWritten();
+		return written > 0 ? (double)getBytesRead() / written : 0;
+	}
+
+	@Override
+	public double getFilesPerSecond() {
+		return perSecond(getFilesScanned());
+	}
+
+	@Override
+	public double getMBPerSecond() {
+		return perSecond(getBytesRead()) / 1e6;
+	}
+
+	/* So far while running */
+	@Override
+	public long getTotalMs() {
+		long total = totalNanos;
+		return (total < 0 ? System.nanoTime() - startNanos : total) / 1000000;
+	}
+
+	@Override
+	public long getScanMs() {
+		return scanNanos / 1000000;
+	}
+
+	@Override
+	public long getCompressMs() {
+		return compressNanos.sum() / 1000000;
+	}
+
+	@Override
+	public long getHashMs() {
+		return hashNanos.sum() / 1000000;
+	}
+
+	@Override
+	public long getRetentionMs() {
+		return retentionNanos / 1000000;
+	}
+
+	@Override
+	public long getBytesVerified() {
+		return bytesVerified.sum();
+	}
+
+	@Override
+	public double getVerifyMBPerSecond() {
+		return perSecond(getBytesVerified()) / 1e6;
+	}
+
+	/* Adds a line to the history file, created with its header if needed */
+	void appendTo(Path history) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		if (!Files.exists(history))
+			sb.append(HISTORY_HEADER).append('\n').append(HISTORY_COLUMNS).append('\n');
+		sb.append(String.format(Locale.ROOT, "%s\t%s\t%d\t%d\t%d\t%d\t%.3f\t%.1f\t%.2f\t%d\t%d\t%d\t%d\t%d\t%d\t%.2f\t%s%n",
+				getStarted(), getOperation(), getFilesScanned(), getFilesSkipped(),
+				getBytesRead(), getBytesWritten(), getCompressionRatio(),
+				getFilesPerSecond(), getMBPerSecond(), getTotalMs(), getScanMs(),
+				getCompressMs(), getHashMs(), getRetentionMs(),
+				getBytesVerified(), getVerifyMBPerSecond(), job));
+		Files.writeString(history, sb, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public String toString() {
+		String of = job.isEmpty() ? "" : " of '" + job + "'";
+		if (operation == Operation.VERIFY)
+			return String.format(Locale.ROOT, "Verification%s: %d bytes in %d ms (%.1f MB/s), hashing %d ms",
+					of, getBytesVerified(), getTotalMs(), getVerifyMBPerSecond(), getHashMs());
+		return String.format(Locale.ROOT,
+				"Backup%s: %d files (%d skipped), %d bytes read, %d written (ratio %.2f), %.0f files/s, %.1f MB/s;"
+				+ " total %d ms, scan %d ms, compress %d ms, hash %d ms, retention %d ms",
+				of, getFilesScanned(), getFilesSkipped(), getBytesRead(), getBytesWritten(),
+				getCompressionRatio(), getFilesPerSecond(), getMBPerSecond(), getTotalMs(),
+				getScanMs(), getCompressMs(), getHashMs(), getRetentionMs());
+	}
+
+	private double perSecond(long n) {
+		long ms = getTotalMs();
+		return ms > 0 ? n * 1000.0 / ms : 0;
+	}
+}
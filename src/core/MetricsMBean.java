@@ -0,0 +1,26 @@
+package core;
+
+/* What JMX shows of the last backup or verification, see Metrics */
+public interface MetricsMBean {
+	String getOperation();
+	String getJob();
+	String getStarted();
+	boolean isRunning();
+
+	long getFilesScanned();
+	long getFilesSkipped();
+	long getBytesRead();
+	long getBytesWritten();
+	double getCompressionRatio();
+	double getFilesPerSecond();
+	double getMBPerSecond();
+
+	long getTotalMs();
+	long getScanMs();
+	long getCompressMs();
+	long getHashMs();
+	long getRetentionMs();
+
+	long getBytesVerified();
+	double getVerifyMBPerSecond();
+}
@@ -0,0 +1,227 @@
+package core;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/* Tuning settings, each one optional in dumback.cfg */
+public class Options {
+	public enum Format { ZIP, DEDUP, LINK }
+	public enum ChecksumAlgorithm { MD5, SHA256, CRC32C }
+	public enum LogLevel { DEBUG, INFO, ERROR }
+
+	private static final String KEYS[] = {
+		"threads",
+		"fullEvery",
+		"format",
+		"verifyThreads",
+		"verifyIo",
+		"reverifyDays",
+		"checksum",
+		"treeBlockMB",
+		"verifySample",
+		"compressionLevel",
+		"storeExtensions",
+		"scanThreads",
+		"logLevel",
+		"parallelJobs",
+		"schedule",
+		"window",
+		"maxLoad",
+		"maxCpu",
+		"readMBps",
+		"writeMBps",
+		"cpuThreads",
+		"volumeMB",
+		"keepDaily",
+		"keepWeekly",
+		"keepMonthly",
+		"keepYearly",
+		"keepMin",
+		"retentionDryRun",
+		"exclude",
+		"include",
+		"maxFileMB",
+		"maxAgeDays",
+	};
+
+	private static final String DEFAULT_STORE_EXTENSIONS =
+		"jpg,jpeg,png,gif,webp,heic,mp3,m4a,aac,ogg,opus,flac,mp4,m4v,mkv,mov,avi,webm,"
+		+ "zip,gz,tgz,bz2,xz,zst,7z,rar,jar,docx,xlsx,pptx,odt,ods,odp,epub";
+
+	public final int threads; /* zero is one per processor */
+	public final int fullEvery; /* backups per full one, the others are incremental; zero or one is always full */
+	public final Format format;
+	public final int verifyThreads; /* zero is one per processor */
+	public final int verifyIo; /* archives read at the same time, zero is no limit */
+	public final int reverifyDays; /* zero verifies unchanged archives every time */
+	public final ChecksumAlgorithm checksum;
+	public final int treeBlockMB; /* zero is no tree hash */
+	public final int verifySample; /* percent of the tree hash blocks checked */
+	public final int compressionLevel; /* DEFLATE level, zero stores every file */
+	public final Set<String> storeExtensions; /* lower case, stored without trying to compress */
+	public final int scanThreads; /* directories listed at the same time */
+	public final LogLevel logLevel;
+	public final int parallelJobs; /* backup jobs run at the same time, only read from the main settings */
+	final Scheduler.Times schedule; /* null is every freqDays */
+	final Scheduler.Window window; /* null is any time */
+	public final int maxLoad; /* percent of load average per processor to wait above, zero is off */
+	public final int maxCpu; /* percent of the CPU of the system busy to wait above, zero is off */
+	public final int readMBps; /* read by all the backups, zero is no limit; only read from the main settings */
+	public final int writeMBps; /* written by all the backups, zero is no limit; only read from the main settings */
+	public final int cpuThreads; /* compressing in all the backups, zero is no limit; only read from the main settings */
+	public final int volumeMB; /* of files per volume of a ZIP backup, zero is a single archive */
+	public final int keepDaily; /* days, weeks, months and years with a backup kept, see Retention */
+	public final int keepWeekly;
+	public final int keepMonthly;
+	public final int keepYearly;
+	public final int keepMin; /* newest backups never deleted */
+	public final boolean retentionDryRun; /* logs what retention would delete instead */
+	final Filter filter; /* of the source walk, from exclude, include, maxFileMB and maxAgeDays */
+
+	/* Entries as they were set, written back as they are */
+	final Map<String,String> entries;
+	/* The entries and the ones inherited, what the settings are parsed from */
+	private final Map<String,String> merged;
+
+	public Options(Map<String,String> entries) {
+		this(Map.of(), entries);
+	}
+
+	/* Settings of a job: its own entries, the others as in defaults */
+	public Options(Options defaults, Map<String,String> entries) {
+		this(defaults.merged, entries);
+	}
+
+	private Options(Map<String,String> defaults, Map<String,String> entries) {
+		this.entries = new LinkedHashMap<>(entries);
+		merged = new LinkedHashMap<>(defaults);
+		merged.putAll(entries);
+
+		threads = parseInt("threads", 0, 0, 1024);
+		fullEvery = parseInt("fullEvery", 0, 0, 10000);
+		format = parseEnum("format", Format.ZIP, Format.values());
+		verifyThreads = parseInt("verifyThreads", 0, 0, 1024);
+		verifyIo = parseInt("verifyIo", 0, 0, 1024);
+		reverifyDays = parseInt("reverifyDays", 7, 0, 3650);
+		checksum = parseEnum("checksum", ChecksumAlgorithm.MD5, ChecksumAlgorithm.values());
+		treeBlockMB = parseInt("treeBlockMB", 0, 0, 1024);
+		verifySample = parseInt("verifySample", 100, 1, 100);
+		compressionLevel = parseInt("compressionLevel", 6, 0, 9);
+		storeExtensions = parseList("storeExtensions", DEFAULT_STORE_EXTENSIONS);
+		scanThreads = parseInt("scanThreads", 8, 1, 1024);
+		logLevel = parseEnum("logLevel", LogLevel.INFO, LogLevel.values());
+		parallelJobs = parseInt("parallelJobs", 2, 1, 64);
+		schedule = parse("schedule", Scheduler.Times::parse);
+		window = parse("window", Scheduler.Window::parse);
+		maxLoad = parseInt("maxLoad", 0, 0, 10000);
+		maxCpu = parseInt("maxCpu", 0, 0, 100);
+		readMBps = parseInt("readMBps", 0, 0, 100000);
+		writeMBps = parseInt("writeMBps", 0, 0, 100000);
+		cpuThreads = parseInt("cpuThreads", 0, 0, 1024);
+		volumeMB = parseInt("volumeMB", 0, 0, 1048576);
+		keepDaily = parseInt("keepDaily", 0, 0, 100000);
+		keepWeekly = parseInt("keepWeekly", 0, 0, 10000);
+		keepMonthly = parseInt("keepMonthly", 0, 0, 10000);
+		keepYearly = parseInt("keepYearly", 0, 0, 1000);
+		keepMin = parseInt("keepMin", 0, 0, 100000);
+		retentionDryRun = parseBoolean("retentionDryRun", false);
+		List<Filter.Glob> exclude = parse("exclude", Filter::globs);
+		List<Filter.Glob> include = parse("include", Filter::globs);
+		filter = new Filter(exclude != null ? exclude : List.of(), include != null ? include : List.of(),
+				parseInt("maxFileMB", 0, 0, 100000000), parseInt("maxAgeDays", 0, 0, 100000));
+	}
+
+	public Options() {
+		this(Map.of());
+	}
+
+	static boolean isKnown(String key) {
+		for (String k : KEYS)
+			if (k.equals(key))
+				return true;
+		return false;
+	}
+
+	int threadCount() {
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	int verifyThreadCount() {
+		return verifyThreads > 0 ? verifyThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	private int parseInt(String key, int def, int min, int max) {
+		String value = merged.get(key);
+		if (value == null)
+			return def;
+
+		int n;
+		try {
+			n = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("'" + key + "' must be a number");
+		}
+		if (n < min || n > max)
+			throw new IllegalArgumentException(
+					"'" + key + "' must be between " + min + " and " + max);
+		return n;
+	}
+
+	private <E extends Enum<E>> E parseEnum(String key, E def, E values[]) {
+		String value = merged.get(key);
+		if (value == null)
+			return def;
+
+		for (E e : values)
+			if (e.name().equalsIgnoreCase(value))
+				return e;
+		StringBuilder sb = new StringBuilder();
+		for (E e : values)
+			sb.append(sb.length() > 0 ? ", " : "").append(e.name().toLowerCase());
+		throw new IllegalArgumentException("'" + key + "' must be one of: " + sb);
+	}
+
+	private boolean parseBoolean(String key, boolean def) {
+		String value = merged.get(key);
+		if (value == null)
+			return def;
+
+		if (value.equalsIgnoreCase("true"))
+			return true;
+		if (value.equalsIgnoreCase("false"))
+			return false;
+		throw new IllegalArgumentException("'" + key + "' must be true or false");
+	}
+
+	/* Null if not set, the parser throws an IllegalArgumentException saying what is wrong */
+	private <T> T parse(String key, Function<String,T> parser) {
+		String value = merged.get(key);
+		if (value == null)
+			return null;
+
+		try {
+			return parser.apply(value);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("'" + key + "' " + e.getMessage());
+		}
+	}
+
+	/* Comma separated values, in lower case */
+	private Set<String> parseList(String key, String def) {
+		String value = merged.getOrDefault(key, def);
+		Set<String> set = new HashSet<>();
+		for (String s : value.split(","))
+			if (!s.isBlank())
+				set.add(s.trim().toLowerCase());
+		return set;
+	}
+
+	@Override
+	public String toString() {
+		return entries.toString();
+	}
+}
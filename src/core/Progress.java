@@ -0,0 +1,53 @@
+package core;
+
+/*
+ * Progress of one backup: files and bytes found by the scanner against
+ * those done, given to the listener at most every INTERVAL_NANOS.  Only
+ * the thread running the backup calls it, except done(), also called by
+ * the workers writing the volumes of a set.
+ */
+class Progress {
+	private static final long INTERVAL_NANOS = 200000000;
+
+	private final ProgressListener listener; /* may be null */
+	private final CancellationToken cancel; /* may be null */
+	private SourceScanner scanner;
+	private long filesDone;
+	private long bytesDone;
+	private long lastReport;
+
+	Progress(ProgressListener listener, CancellationToken cancel) {
+		this.listener = listener;
+		this.cancel = cancel;
+	}
+
+	void scanning(SourceScanner scanner) {
+		this.scanner = scanner;
+	}
+
+	synchronized void done(long bytes) {
+		filesDone++;
+		bytesDone += bytes;
+		long now = System.nanoTime();
+		if (now - lastReport >= INTERVAL_NANOS) {
+			lastReport = now;
+			report();
+		}
+	}
+
+	/* Throws a CancellationException if the backup was cancelled */
+	void check() {
+		if (cancel != null)
+			cancel.check();
+	}
+
+	synchronized void finish() {
+		report();
+	}
+
+	private void report() {
+		if (listener == null || scanner == null)
+			return;
+		listener.progress(filesDone, scanner.filesFound(), bytesDone, scanner.bytesFound(), scanner.walkOver());
+	}
+}
@@ -0,0 +1,11 @@
+package core;
+
+/*
+ * Told how far a backup is, from the thread running it (one thread at a
+ * time when several jobs run, their progress summed).  The totals grow
+ * while the source directories are being walked, and are final once
+ * totalKnown is true.
+ */
+public interface ProgressListener {
+	void progress(long filesDone, long filesTotal, long bytesDone, long bytesTotal, boolean totalKnown);
+}
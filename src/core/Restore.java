@@ -0,0 +1,298 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import static core.I18n.i18n;
+
+/*
+ * Restores files from ZIP backups and dedup snapshots (see ChunkStore).
+ * Only the central directory is read to list an archive or find a file in
+ * it, and the data of each chosen entry is read from its offset, so the
+ * size of the archive does not matter.  Files are found through the
+ * Catalog of the destination.  The volumes of a set are restored as one
+ * backup.
+ *
+ * An incremental backup is restored with the ones before it, back to the
+ * last full one: each file comes from the newest of them that holds it,
+ * unless one after that lists it as deleted.
+ */
+class Restore {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/* Where the version of a file to restore is */
+	private static class Source {
+		final Path archive;
+		final ZipIndex index;
+		final ZipIndex.Entry entry;
+
+		Source(Path archive, ZipIndex index, ZipIndex.Entry entry) {
+			this.archive = archive;
+			this.index = index;
+			this.entry = entry;
+		}
+	}
+
+	private final Log log;
+
+	Restore(Log log) {
+		this.log = log;
+	}
+
+	/* ZIP archives in dest, each volume of a set on its own, newest first */
+	static List<Path> archives(Path dest) throws IOException {
+		try (Stream<Path> list = Files.list(dest)) {
+			return list
+				.filter(path -> Backup.isBackup(path) && !Backup.isSnapshot(path) && !Backup.isLinkSnapshot(path))
+				.sorted(Comparator.reverseOrder())
+				.collect(Collectors.toList());
+		}
+	}
+
+	/*
+	 * ZIP backups in dest, a volume set as one named by VolumeSet.setPath(),
+	 * and dedup snapshots, newest first
+	 */
+	static List<Path> backups(Path dest) throws IOException {
+		try (Stream<Path> list = Files.list(dest)) {
+			return list
+				.filter(path -> Backup.isBackup(path) && !Backup.isLinkSnapshot(path))
+				.map(VolumeSet::setPath)
+				.distinct()
+				.sorted(Comparator.reverseOrder())
+				.collect(Collectors.toList());
+		}
+	}
+
+	/* The archives of a backup: its volumes in order when it is a set, or the archive itself */
+	List<Path> volumes(Path backup) throws IOException {
+		Path set = VolumeSet.setPath(backup);
+		List<Path> volumes;
+		try (Stream<Path> list = Files.list(set.getParent())) {
+			volumes = list
+				.filter(path -> VolumeSet.number(path) > 0 && VolumeSet.setPath(path).equals(set))
+				.sorted()
+				.collect(Collectors.toList());
+		}
+		if (volumes.isEmpty())
+			return List.of(set);
+		for (int i = 0; i < volumes.size(); i++)
+			if (VolumeSet.number(volumes.get(i)) != i + 1) {
+				log.error(i18n("error.Missing_volume"), i + 1, set);
+				break;
+			}
+		return volumes;
+	}
+
+	/* The backup and, when it is incremental, those before it back to the last full one, newest first */
+	List<Path> chain(Path backup) throws IOException {
+		Path set = VolumeSet.setPath(backup);
+		List<Path> all = backups(set.getParent());
+		all.removeIf(Backup::isSnapshot);
+		int i = all.indexOf(set);
+		if (i == -1)
+			return List.of(set);
+
+		List<Path> chain = new ArrayList<>();
+		for (; i < all.size(); i++) {
+			chain.add(all.get(i));
+			if (!Backup.isIncremental(all.get(i)))
+				return chain;
+		}
+		log.error(i18n("error.Missing_full_backup"), set.getFileName());
+		return chain;
+	}
+
+	/* The files the backup restores, as they were when it was made */
+	List<ArchiveEntry> list(Path backup) throws IOException {
+		if (Backup.isSnapshot(backup))
+			return new ChunkStore(backup.getParent(), log).list(backup);
+		List<ArchiveEntry> entries = new ArrayList<>();
+		for (Source s : resolve(backup, "").values())
+			entries.add(new ArchiveEntry(s.entry.name, s.entry.size, ZipIndex.javaTime(s.entry.dosTime)));
+		return entries;
+	}
+
+	/*
+	 * The newest backup in dest to restore the file or directory at path
+	 * from, null if there is none or an incremental backup says the file was
+	 * deleted since; a volume set is given by VolumeSet.setPath().  Looked
+	 * up in the catalog of dest.
+	 */
+	Path findNewest(Path dest, String path) throws IOException {
+		return Catalog.open(dest, log).findNewest(normalize(path));
+	}
+
+	/* Versions of the file or directory at path in the ZIP archives of dest, newest first */
+	List<FileVersion> findVersions(Path dest, String path) throws IOException {
+		List<FileVersion> found = Catalog.open(dest, log).find(normalize(path));
+		found.sort(Comparator.comparing((FileVersion v) -> v.archive.getFileName()).reversed());
+		return found;
+	}
+
+	/*
+	 * Extracts the file or directory at path (all of it when blank), as it
+	 * was when the backup was made, into target; returns how many files.
+	 */
+	int extract(Path backup, String path, Path target) throws IOException {
+		Path root = target.toAbsolutePath().normalize();
+		if (Backup.isSnapshot(backup))
+			return new ChunkStore(backup.getParent(), log).restore(backup, normalize(path), root);
+
+		Map<Path,List<Source>> byArchive = new LinkedHashMap<>();
+		for (Source s : resolve(backup, normalize(path)).values()) {
+			targetFile(root, s.entry.name);
+			byArchive.computeIfAbsent(s.archive, a -> new ArrayList<>()).add(s);
+		}
+
+		int count = 0;
+		for (Map.Entry<Path,List<Source>> a : byArchive.entrySet()) {
+			log.debug("From '%s':", a.getKey().getFileName());
+			try (FileChannel ch = FileChannel.open(a.getKey(), StandardOpenOption.READ)) {
+				for (Source s : a.getValue()) {
+					ZipIndex.Entry e = s.entry;
+					Path file = targetFile(root, e.name);
+					log.debug(() -> "  " + e.name);
+					Files.createDirectories(file.getParent());
+					try (OutputStream out = Files.newOutputStream(file)) {
+						copy(ch, s.index, e, out);
+					}
+					Files.setLastModifiedTime(file, FileTime.fromMillis(ZipIndex.javaTime(e.dosTime)));
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/* The newest version in the chain of the backup of each file at path, by name */
+	private Map<String,Source> resolve(Path backup, String path) throws IOException {
+		Map<String,Source> found = new TreeMap<>();
+		Set<String> deleted = new HashSet<>(); /* by a backup already read */
+		for (Path b : chain(backup)) {
+			List<String> deletedHere = new ArrayList<>();
+			for (Path archive : volumes(b)) {
+				try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ)) {
+					ZipIndex index = ZipIndex.read(ch);
+					for (ZipIndex.Entry e : index.entries) {
+						if (e.name.equals(Backup.DELETED_ENTRY))
+							deletedHere.addAll(deletedNames(ch, index, e));
+						else if (matches(e.name, path) && !deleted.contains(e.name))
+							found.putIfAbsent(e.name, new Source(archive, index, e));
+					}
+				}
+			}
+			deleted.addAll(deletedHere);
+		}
+		return found;
+	}
+
+	/* Writes the uncompressed data of an entry, checking its size and CRC */
+	private static void copy(FileChannel ch, ZipIndex index, ZipIndex.Entry e, OutputStream out) throws IOException {
+		long pos = index.dataOffset(ch, e);
+		if (pos + e.csize > index.cdOffset)
+			throw new IOException("Entry data past the central directory: " + e.name);
+
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte buf[] = new byte[BUFFER_SIZE];
+
+		if (e.method == ZipWriter.STORED) {
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			for (long end = pos + e.csize; pos < end; ) {
+				bb.clear().limit((int)Math.min(buf.length, end - pos));
+				int n = ch.read(bb, pos);
+				if (n < 0)
+					throw new IOException("Unexpected end of archive");
+				crc.update(buf, 0, n);
+				out.write(buf, 0, n);
+				pos += n;
+				size += n;
+			}
+		} else if (e.method == ZipWriter.DEFLATED) {
+			Inflater inflater = new Inflater(true);
+			ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			try {
+				long end = pos + e.csize;
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						if (pos >= end)
+							throw new IOException("Truncated entry: " + e.name);
+						in.clear().limit((int)Math.min(in.capacity(), end - pos));
+						int n = ch.read(in, pos);
+						if (n < 0)
+							throw new IOException("Unexpected end of archive");
+						pos += n;
+						inflater.setInput(in.flip());
+					}
+					int n = inflater.inflate(buf);
+					crc.update(buf, 0, n);
+					out.write(buf, 0, n);
+					size += n;
+				}
+			} catch (DataFormatException ex) {
+				throw new IOException("Invalid compressed data in " + e.name, ex);
+			} finally {
+				inflater.end();
+			}
+		} else {
+			throw new IOException("Unsupported compression method " + e.method + ": " + e.name);
+		}
+
+		if (size != e.size || crc.getValue() != e.crc)
+			throw new IOException("Wrong size or CRC: " + e.name);
+	}
+
+	/* The files an incremental backup lists as deleted */
+	static List<String> deletedNames(FileChannel ch, ZipIndex index, ZipIndex.Entry deleted) throws IOException {
+		ByteArrayOutputStream names = new ByteArrayOutputStream();
+		copy(ch, index, deleted, names);
+		List<String> l = new ArrayList<>();
+		for (String name : names.toString(StandardCharsets.UTF_8).split("\n"))
+			if (!name.isEmpty())
+				l.add(name);
+		return l;
+	}
+
+	/* Where the file called name in a backup goes under root */
+	static Path targetFile(Path root, String name) throws IOException {
+		Path file = root.resolve(name).normalize();
+		if (!file.startsWith(root) || file.equals(root))
+			throw new IOException("Entry outside of the target directory: " + name);
+		return file;
+	}
+
+	/* Whether the file called name is the one at path or under it; everything is under a blank path */
+	static boolean matches(String name, String path) {
+		return path.isEmpty() || name.equals(path) || name.startsWith(path + "/");
+	}
+
+	private static String normalize(String path) {
+		String p = path.trim().replace('\\', '/');
+		while (p.startsWith("/"))
+			p = p.substring(1);
+		while (p.endsWith("/"))
+			p = p.substring(0, p.length() - 1);
+		return p;
+	}
+}
@@ -0,0 +1,151 @@
+package core;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * Which backups to keep, in the grandfather-father-son way: the newest
+ * backup of each of the last keepDaily days, keepWeekly ISO weeks,
+ * keepMonthly months and keepYearly years that have one, every backup
+ * younger than keepDays, and at least the keepMin newest ones.  Each rule
+ * keeps its own count, so a backup may be kept by several.  With no rule
+ * at all nothing is deleted.
+ *
+ * A backup is a point in time: an archive, a snapshot or a volume set.  An
+ * incremental one needs the ones before it up to the last full one, so
+ * those are kept with it, while the newer points of its chain are deleted
+ * unless kept by a rule themselves.  The plan is made in one pass over the
+ * points, newest first.
+ */
+class Retention {
+	private enum Period {
+		DAILY(t -> t.toLocalDate().toEpochDay()),
+		WEEKLY(t -> t.get(IsoFields.WEEK_BASED_YEAR) * 100L + t.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)),
+		MONTHLY(t -> t.getYear() * 100L + t.getMonthValue()),
+		YEARLY(t -> (long)t.getYear());
+
+		final Function<LocalDateTime,Long> key;
+
+		Period(Function<LocalDateTime,Long> key) {
+			this.key = key;
+		}
+	}
+
+	/* Backups to delete, and why each one that is not is kept */
+	static class Plan {
+		final List<Path> delete = new ArrayList<>();
+		final Map<Path,String> keep = new LinkedHashMap<>();
+	}
+
+	private final int keepDays;
+	private final int keepMin;
+	private final int counts[] = new int[Period.values().length];
+
+	Retention(int keepDays, Options options) {
+		this.keepDays = keepDays;
+		this.keepMin = options.keepMin;
+		counts[Period.DAILY.ordinal()] = options.keepDaily;
+		counts[Period.WEEKLY.ordinal()] = options.keepWeekly;
+		counts[Period.MONTHLY.ordinal()] = options.keepMonthly;
+		counts[Period.YEARLY.ordinal()] = options.keepYearly;
+	}
+
+	/* Whether any rule is set; otherwise everything is kept */
+	boolean isSet() {
+		if (keepDays > 0)
+			return true;
+		for (int n : counts)
+			if (n > 0)
+				return true;
+		return false;
+	}
+
+	/*
+	 * backups are sorted by name, oldest first, each a group of the files of
+	 * one point in time; chainStart tells which ones start a chain.  Points
+	 * without a timestamp in their name are kept.
+	 */
+	Plan plan(List<List<Path>> backups, Function<Path,Boolean> chainStart, LocalDateTime now) {
+		Plan plan = new Plan();
+		if (!isSet()) {
+			for (List<Path> point : backups)
+				plan.keep.put(point.get(0), "no rule");
+			return plan;
+		}
+
+		/* Newest first: a chain is known once its first point is reached */
+		int left[] = counts.clone();
+		long lastKey[] = new long[counts.length];
+		List<List<Path>> chain = new ArrayList<>(); /* newest first */
+		int kept = -1; /* in chain, of the newest point kept */
+		int seen = 0;
+		for (int i = backups.size() - 1; i >= 0; i--) {
+			List<Path> point = backups.get(i);
+			String reason = reason(point.get(0), seen++, now, left, lastKey);
+			if (reason != null) {
+				plan.keep.put(point.get(0), reason);
+				if (kept < 0)
+					kept = chain.size();
+			}
+			chain.add(point);
+
+			if (chainStart.apply(point.get(0)) || i == 0) {
+				/* The points newer than the kept one are not needed by it */
+				int needed = kept < 0 ? chain.size() : kept;
+				for (List<Path> newer : chain.subList(0, needed))
+					plan.delete.addAll(newer);
+				for (List<Path> older : chain.subList(needed, chain.size()))
+					for (Path p : older)
+						plan.keep.putIfAbsent(p, "needed by " + chain.get(kept).get(0).getFileName());
+				chain.clear();
+				kept = -1;
+			}
+		}
+		return plan;
+	}
+
+	/* Why the point is kept, null if it is not; uses up a place of each period rule it is kept by */
+	private String reason(Path path, int newer, LocalDateTime now, int left[], long lastKey[]) {
+		LocalDateTime time = timestamp(path);
+		if (time == null)
+			return "no timestamp";
+
+		List<String> reasons = new ArrayList<>();
+		if (newer < keepMin)
+			reasons.add("min");
+		if (keepDays > 0 && Duration.between(time, now).compareTo(Duration.ofDays(keepDays)) <= 0)
+			reasons.add("keepDays");
+		for (Period p : Period.values()) {
+			int n = p.ordinal();
+			long key = p.key.apply(time);
+			if (left[n] > 0 && (left[n] == counts[n] || key != lastKey[n])) {
+				left[n]--;
+				lastKey[n] = key;
+				reasons.add(p.name().toLowerCase() + " " + (counts[n] - left[n]));
+			}
+		}
+		return reasons.isEmpty() ? null : String.join(", ", reasons);
+	}
+
+	/* The time in the name of a backup, null if it has none */
+	static LocalDateTime timestamp(Path backup) {
+		String name = backup.getFileName().toString();
+		int start = Backup.ARCHIVE_PREFIX.length();
+		int end = start + "yyyyMMdd_HHmmss".length();
+		if (!name.startsWith(Backup.ARCHIVE_PREFIX) || name.length() < end)
+			return null;
+		try {
+			return LocalDateTime.parse(name.substring(start, end), Backup.TIMESTAMP_FORMAT);
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package core;
+
+import com.sun.management.OperatingSystemMXBean;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import static core.I18n.i18n;
+
+/*
+ * Starts the backup jobs that are due, looking at the wall clock every
+ * minute, so suspends and clock changes do not make it drift.  A job with
+ * a 'schedule' is due at the times it names, one without freqDays after
+ * its last backup.  Runs missed while the computer slept or was off are
+ * made up by a single run at the next check.  A due job waits while the
+ * time is outside its 'window', or while the load is above 'maxLoad' or
+ * the CPU used by the whole system (not only Dumback) above 'maxCpu'.
+ *
+ * When each job was last started is kept in STATE_FILENAME, so a schedule
+ * is not run twice across restarts.  Line: job name TAB local date-time
+ */
+class Scheduler {
+	static final String STATE_FILENAME = "schedule.state";
+	private static final String HEADER = "# Dumback schedule state";
+	private static final long POLL_SECONDS = 60;
+
+	/* Times of day on some days of the week, as in "02:30 daily" or "08:00,20:00 mon,fri" */
+	static class Times {
+		private final List<LocalTime> times;
+		private final Set<DayOfWeek> days;
+
+		private Times(List<LocalTime> times, Set<DayOfWeek> days) {
+			this.times = times;
+			this.days = days;
+		}
+
+		static Times parse(String s) {
+			String f[] = s.trim().split("\\s+");
+			if (f.length > 2)
+				throw new IllegalArgumentException("must be like '02:30 daily' or '08:00,20:00 mon,fri'");
+
+			List<LocalTime> times = new ArrayList<>();
+			for (String t : f[0].split(","))
+				times.add(parseTime(t));
+			Collections.sort(times, Collections.reverseOrder());
+
+			Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+			String when = f.length > 1 ? f[1].toLowerCase() : "daily";
+			switch (when) {
+			case "daily":
+				days = EnumSet.allOf(DayOfWeek.class);
+				break;
+			case "weekdays":
+				days = EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+				break;
+			case "weekends":
+				days = EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+				break;
+			default:
+				for (String d : when.split(","))
+					days.add(parseDay(d));
+			}
+			return new Times(times, days);
+		}
+
+		/* The last of the times not after now */
+		LocalDateTime previous(LocalDateTime now) {
+			for (int i = 0; i <= 7; i++) {
+				LocalDateTime day = now.toLocalDate().minusDays(i).atStartOfDay();
+				if (!days.contains(day.getDayOfWeek()))
+					continue;
+				for (LocalTime t : times) { /* latest first */
+					LocalDateTime at = day.with(t);
+					if (!at.isAfter(now))
+						return at;
+				}
+			}
+			return null;
+		}
+
+		private static DayOfWeek parseDay(String d) {
+			for (DayOfWeek day : DayOfWeek.values())
+				if (d.length() >= 3 && day.name().toLowerCase().startsWith(d))
+					return day;
+			throw new IllegalArgumentException("has an unknown day: '" + d + "'");
+		}
+	}
+
+	/* Times of day a job may start, as in "22:00-06:00" */
+	static class Window {
+		private final LocalTime start;
+		private final LocalTime end;
+
+		private Window(LocalTime start, LocalTime end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		static Window parse(String s) {
+			String f[] = s.split("-");
+			if (f.length != 2)
+				throw new IllegalArgumentException("must be like '22:00-06:00'");
+			return new Window(parseTime(f[0]), parseTime(f[1]));
+		}
+
+		boolean contains(LocalTime t) {
+			if (start.isBefore(end))
+				return !t.isBefore(start) && t.isBefore(end);
+			return !t.isBefore(start) || t.isBefore(end); /* past midnight */
+		}
+	}
+
+	private final Log log;
+	private final Path statePath;
+	private final Supplier<List<ConfigEntries>> jobs;
+	private final Executor executor;
+	private final Consumer<ConfigEntries> run;
+	private final Map<String,LocalDateTime> lastRuns = new ConcurrentHashMap<>();
+	private final Set<String> started = ConcurrentHashMap.newKeySet(); /* not finished yet */
+	private final Set<String> waiting = ConcurrentHashMap.newKeySet(); /* why was logged */
+	private ScheduledExecutorService clock;
+
+	/* run backs up a job, on a thread of executor */
+	Scheduler(Log log, Path statePath, Supplier<List<ConfigEntries>> jobs,
+			Executor executor, Consumer<ConfigEntries> run) {
+		this.log = log;
+		this.statePath = statePath;
+		this.jobs = jobs;
+		this.executor = executor;
+		this.run = run;
+
+		try {
+			load();
+		} catch (IOException e) {
+			log.error(i18n("error.Failed_to_access"), statePath, e.getMessage());
+		}
+	}
+
+	/* Checks right away, then every minute */
+	synchronized void start() {
+		if (clock == null) {
+			clock = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "dumback-scheduler");
+				t.setDaemon(true); /* exiting does not wait for stop() */
+				return t;
+			});
+			clock.scheduleWithFixedDelay(this::poll, 1, POLL_SECONDS, TimeUnit.SECONDS);
+		} else {
+			clock.execute(this::poll);
+		}
+	}
+
+	synchronized void stop() {
+		if (clock != null)
+			clock.shutdownNow();
+		clock = null;
+	}
+
+	/* An exception would cancel the periodic task, so none gets out */
+	private void poll() {
+		try {
+			LocalDateTime now = LocalDateTime.now();
+			for (ConfigEntries job : jobs.get()) {
+				if (started.contains(job.name) || !isDue(job, now))
+					continue;
+
+				String reason = reasonToWait(job, now);
+				if (reason != null) {
+					if (waiting.add(job.name))
+						log.debug("Backup job '%s' is due, waiting: %s", job.name, reason);
+					continue;
+				}
+				waiting.remove(job.name);
+
+				setLastRun(job, now);
+				started.add(job.name);
+				executor.execute(() -> {
+					try {
+						run.accept(job);
+					} finally {
+						started.remove(job.name);
+					}
+				});
+			}
+		} catch (Throwable e) {
+			log.error(i18n("error.Auto_backup_failed"), e);
+		}
+	}
+
+	/*
+	 * A job on a schedule that never ran waits for its next time: it counts
+	 * as run now, not at one of the times of the past week.
+	 */
+	private boolean isDue(ConfigEntries job, LocalDateTime now) {
+		LocalDateTime last = lastRuns.get(job.name);
+		if (job.lastBackup != null) {
+			LocalDateTime backedUp = job.lastBackup.date.atStartOfDay();
+			if (last == null || backedUp.isAfter(last))
+				last = backedUp;
+		}
+
+		Times schedule = job.options.schedule;
+		if (schedule != null) {
+			if (last == null) {
+				setLastRun(job, now);
+				return false;
+			}
+			LocalDateTime previous = schedule.previous(now);
+			return previous != null && last.isBefore(previous);
+		}
+		if (job.freqDays <= 0)
+			return false;
+		return last == null || !now.isBefore(last.plusDays(job.freqDays));
+	}
+
+	private void setLastRun(ConfigEntries job, LocalDateTime time) {
+		lastRuns.put(job.name, time);
+		try {
+			save();
+		} catch (IOException e) {
+			log.error(i18n("error.Couldnt_write"), statePath, e.getMessage());
+		}
+	}
+
+	/* Null if the job may start now */
+	private String reasonToWait(ConfigEntries job, LocalDateTime now) {
+		Options options = job.options;
+		if (options.window != null && !options.window.contains(now.toLocalTime()))
+			return "outside of the window";
+
+		OperatingSystemMXBean os = (OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+		if (options.maxLoad > 0) {
+			double load = os.getSystemLoadAverage(); /* negative when unknown */
+			if (load * 100 / os.getAvailableProcessors() > options.maxLoad)
+				return String.format("load average %.2f", load);
+		}
+		if (options.maxCpu > 0) {
+			double cpu = os.getCpuLoad() * 100; /* since the last call, negative when unknown */
+			if (cpu > options.maxCpu)
+				return String.format("CPU %.0f%% busy", cpu);
+		}
+		return null;
+	}
+
+	private static LocalTime parseTime(String t) {
+		try {
+			return LocalTime.parse(t.trim().length() == 4 ? "0" + t.trim() : t.trim());
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("has an invalid time: '" + t + "'");
+		}
+	}
+
+	private void load() throws IOException {
+		if (!Files.exists(statePath))
+			return;
+
+		try (BufferedReader r = Files.newBufferedReader(statePath)) {
+			String line = r.readLine();
+			if (!HEADER.equals(line))
+				throw new IOException("Not a schedule state: " + statePath);
+			while ((line = r.readLine()) != null) {
+				String f[] = line.split("\t", 2);
+				if (f.length != 2)
+					continue;
+				try {
+					lastRuns.put(f[0], LocalDateTime.parse(f[1]));
+				} catch (DateTimeException e) {
+					/* Only costs a run */
+				}
+			}
+		}
+	}
+
+	private synchronized void save() throws IOException {
+		Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+		try (BufferedWriter w = Files.newBufferedWriter(tmp)) {
+			w.write(HEADER);
+			w.newLine();
+			for (Map.Entry<String,LocalDateTime> e : lastRuns.entrySet()) {
+				w.write(e.getKey() + "\t" + e.getValue());
+				w.newLine();
+			}
+		}
+		Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
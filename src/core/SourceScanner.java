@@ -0,0 +1,236 @@
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import static core.I18n.i18n;
+
+/*
+ * Walks the source directories on a pool of threads, each one listing a
+ * directory, so the latency of every stat on a network mount is paid many
+ * at a time.  Files come out of a bounded queue as they are found, and the
+ * archiver works on them while the walk goes on.  A file or directory that
+ * cannot be read is given to the error handler and left out.
+ *
+ * Like Files.walk, symbolic links to directories are not walked; links to
+ * files are followed.  What the filter leaves out is counted by rule, and
+ * a directory it excludes is not listed.
+ */
+class SourceScanner implements Closeable {
+	private static final int QUEUE_SIZE = 4096;
+
+	interface ErrorHandler {
+		void failed(Path path, String name, IOException e);
+	}
+
+	static class Found {
+		final Path path;
+		final String name; /* relative to the parent of its source directory */
+		final BasicFileAttributes attrs;
+
+		Found(Path path, String name, BasicFileAttributes attrs) {
+			this.path = path;
+			this.name = name;
+			this.attrs = attrs;
+		}
+	}
+
+	private static final Found END = new Found(null, null, null);
+
+	private final BlockingQueue<Found> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final AtomicInteger pendingDirs = new AtomicInteger();
+	private final LongAdder filesFound = new LongAdder();
+	private final LongAdder bytesFound = new LongAdder();
+	private final ExecutorService pool;
+	private final ErrorHandler onError;
+	private final Filter filter;
+	private final long startMillis;
+	private final LongAdder filteredFiles[];
+	private final LongAdder filteredBytes[];
+	private final LongAdder filteredDirs[];
+	private volatile boolean closed;
+	private volatile boolean walkOver;
+	private volatile long walkEnd; /* System.nanoTime() when the walk was over */
+	private boolean ended;
+
+	SourceScanner(List<Path> sourceDirs, int threads, Filter filter, ErrorHandler onError) {
+		this.onError = onError;
+		this.filter = filter;
+		this.startMillis = System.currentTimeMillis();
+		this.filteredFiles = adders(filter.ruleCount());
+		this.filteredBytes = adders(filter.ruleCount());
+		this.filteredDirs = adders(filter.ruleCount());
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "dumback-scan");
+			t.setDaemon(true);
+			return t;
+		});
+
+		if (sourceDirs.isEmpty()) {
+			walkEnd = System.nanoTime();
+			walkOver = true;
+			queue.add(END);
+			return;
+		}
+		pendingDirs.set(sourceDirs.size());
+		for (Path dir : sourceDirs) {
+			Path par = dir.getParent();
+			Path base = par != null ? par : dir;
+			pool.execute(() -> scanRoot(dir, base));
+		}
+	}
+
+	/* The next file found, null when the walk is over */
+	Found next() throws IOException {
+		if (ended)
+			return null;
+		try {
+			Found f = queue.take();
+			if (f == END) {
+				ended = true;
+				return null;
+			}
+			return f;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/* When the last file was found, valid once next() returned null */
+	long walkEnd() {
+		return walkEnd;
+	}
+
+	/* So far, while the walk is not over */
+	long filesFound() {
+		return filesFound.sum();
+	}
+
+	long bytesFound() {
+		return bytesFound.sum();
+	}
+
+	boolean walkOver() {
+		return walkOver;
+	}
+
+	/* What each rule of the filter left out, once the walk is over */
+	void reportFiltered(Log log) {
+		for (int i = 0; i < filter.ruleCount(); i++) {
+			long files = filteredFiles[i].sum();
+			long dirs = filteredDirs[i].sum();
+			if (files > 0 || dirs > 0)
+				log.info(i18n("info.Filtered"), filter.rule(i), files, filteredBytes[i].sum(), dirs);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		pool.shutdownNow();
+		queue.clear();
+	}
+
+	private void scanRoot(Path dir, Path base) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+			if (attrs.isDirectory()) {
+				scanDir(dir, dir, base);
+				return;
+			}
+			if (!filtered(dir.getFileName(), attrs))
+				put(new Found(dir, base.relativize(dir).toString(), attrs));
+		} catch (IOException e) {
+			onError.failed(dir, base.relativize(dir).toString(), e);
+		}
+		dirDone();
+	}
+
+	/* root is the source directory dir is in, base its parent */
+	private void scanDir(Path dir, Path root, Path base) {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path path : ds) {
+				if (closed)
+					break;
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(path,
+							BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isSymbolicLink()) {
+						attrs = Files.readAttributes(path, BasicFileAttributes.class);
+					} else if (attrs.isDirectory()) {
+						int rule = filter.excludesDir(root.relativize(path));
+						if (rule != -1) {
+							filteredDirs[rule].increment();
+							continue;
+						}
+						pendingDirs.incrementAndGet();
+						pool.execute(() -> scanDir(path, root, base));
+						continue;
+					}
+					if (!attrs.isDirectory() && !filtered(root.relativize(path), attrs))
+						put(new Found(path, base.relativize(path).toString(), attrs));
+				} catch (IOException e) {
+					onError.failed(path, base.relativize(path).toString(), e);
+				}
+			}
+		} catch (IOException e) {
+			onError.failed(dir, base.relativize(dir).toString(), e);
+		} catch (DirectoryIteratorException e) {
+			onError.failed(dir, base.relativize(dir).toString(), e.getCause());
+		} finally {
+			dirDone();
+		}
+	}
+
+	private boolean filtered(Path relative, BasicFileAttributes attrs) {
+		int rule = filter.excludesFile(relative, attrs, startMillis);
+		if (rule == -1)
+			return false;
+		filteredFiles[rule].increment();
+		filteredBytes[rule].add(attrs.size());
+		return true;
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder a[] = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			a[i] = new LongAdder();
+		return a;
+	}
+
+	private void dirDone() {
+		if (pendingDirs.decrementAndGet() == 0) {
+			walkEnd = System.nanoTime();
+			walkOver = true;
+			put(END);
+		}
+	}
+
+	private void put(Found f) {
+		if (closed)
+			return;
+		if (f != END) {
+			filesFound.increment();
+			bytesFound.add(f.attrs.size());
+		}
+		try {
+			queue.put(f);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
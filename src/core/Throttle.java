@@ -0,0 +1,156 @@
+package core;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/*
+ * Limits the bytes backups read and write per second, with a token bucket
+ * each, and the threads compressing at the same time.  Shared by all the
+ * jobs, so the limits hold for all of them together, and changeable while
+ * they run.  A bucket holds at most a second of its rate; a read or write
+ * larger than what is left waits until the debt is paid.  The thread limit
+ * can only lower the configured 'threads' of a backup.  Zero is no limit.
+ */
+public class Throttle {
+	private static final long MB = 1000000;
+
+	private static class Bucket {
+		private long rate; /* bytes per second */
+		private double tokens;
+		private long last = System.nanoTime();
+
+		void take(long bytes) throws InterruptedIOException {
+			long waitNanos;
+			synchronized (this) {
+				if (rate <= 0)
+					return;
+				long now = System.nanoTime();
+				tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+				last = now;
+				tokens -= bytes;
+				if (tokens >= 0)
+					return;
+				waitNanos = (long)(-tokens * 1e9 / rate);
+			}
+			try {
+				Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		synchronized void setRate(long rate) {
+			this.rate = rate;
+			tokens = Math.min(tokens, rate);
+		}
+
+		synchronized long rate() {
+			return rate;
+		}
+	}
+
+	private final Bucket read = new Bucket();
+	private final Bucket write = new Bucket();
+	private int maxThreads;
+	private int busyThreads;
+
+	public void setReadMBps(int mbps) {
+		read.setRate(mbps * MB);
+	}
+
+	public int getReadMBps() {
+		return (int)(read.rate() / MB);
+	}
+
+	public void setWriteMBps(int mbps) {
+		write.setRate(mbps * MB);
+	}
+
+	public int getWriteMBps() {
+		return (int)(write.rate() / MB);
+	}
+
+	public synchronized void setThreads(int threads) {
+		maxThreads = threads;
+		notifyAll();
+	}
+
+	public synchronized int getThreads() {
+		return maxThreads;
+	}
+
+	/* Sets the limits of the options */
+	void set(Options options) {
+		setReadMBps(options.readMBps);
+		setWriteMBps(options.writeMBps);
+		setThreads(options.cpuThreads);
+	}
+
+	/* Waits until bytes may be read */
+	void read(long bytes) throws InterruptedIOException {
+		read.take(bytes);
+	}
+
+	/* Waits until bytes may be written */
+	void write(long bytes) throws InterruptedIOException {
+		write.take(bytes);
+	}
+
+	/* Waits for a compression thread to be free, exit() must follow */
+	void enter() throws InterruptedIOException {
+		synchronized (this) {
+			try {
+				while (maxThreads > 0 && busyThreads >= maxThreads)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			busyThreads++;
+		}
+	}
+
+	synchronized void exit() {
+		busyThreads--;
+		notifyAll();
+	}
+
+	InputStream wrap(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				Throttle.this.read(1);
+				return in.read();
+			}
+
+			@Override
+			public int read(byte b[], int off, int len) throws IOException {
+				int n = in.read(b, off, len);
+				if (n > 0)
+					Throttle.this.read(n);
+				return n;
+			}
+		};
+	}
+
+	OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				Throttle.this.write(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte b[], int off, int len) throws IOException {
+				Throttle.this.write(len);
+				out.write(b, off, len);
+			}
+		};
+	}
+}
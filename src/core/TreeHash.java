@@ -0,0 +1,203 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/*
+ * Tree hash sidecar ('<archive>.tree'): the archive is hashed in blocks of
+ * a fixed size, and the block hashes are combined pairwise up to a root.
+ * Blocks can be checked independently, so on all cores, a sample of them
+ * at a time, and a mismatch tells which bytes are damaged.
+ */
+class TreeHash {
+	static final String SUFFIX = ".tree";
+	private static final String HEADER = "# Dumback tree hash";
+
+	final Options.ChecksumAlgorithm algorithm;
+	final int blockSize;
+	private final List<byte[]> leaves = new ArrayList<>();
+	private long size;
+	private long hashNanos;
+	private byte root[];
+
+	TreeHash(Options.ChecksumAlgorithm algorithm, int blockSize) {
+		this.algorithm = algorithm;
+		this.blockSize = blockSize;
+	}
+
+	/* Hashes the blocks of everything written to the returned stream, complete once it is closed */
+	OutputStream wrap(OutputStream out) {
+		Checksum sum = new Checksum(algorithm);
+		return new FilterOutputStream(out) {
+			private int inBlock;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte)b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte b[], int off, int len) throws IOException {
+				out.write(b, off, len);
+				size += len;
+				while (len > 0) {
+					int n = Math.min(len, blockSize - inBlock);
+					long start = System.nanoTime();
+					sum.update(b, off, n);
+					hashNanos += System.nanoTime() - start;
+					inBlock += n;
+					off += n;
+					len -= n;
+					if (inBlock == blockSize) {
+						leaves.add(sum.digest());
+						inBlock = 0;
+					}
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				if (inBlock > 0)
+					leaves.add(sum.digest());
+				inBlock = 0;
+				root = combine();
+			}
+		};
+	}
+
+	/* Time spent hashing what went through wrap() */
+	long hashNanos() {
+		return hashNanos;
+	}
+
+	void write(Path archive) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(path(archive))) {
+			w.write(HEADER);
+			w.newLine();
+			w.write("algorithm=" + algorithm);
+			w.newLine();
+			w.write("blockSize=" + blockSize);
+			w.newLine();
+			w.write("size=" + size);
+			w.newLine();
+			w.write("root=" + Backup.toHex(root));
+			w.newLine();
+			for (byte leaf[] : leaves) {
+				w.write(Backup.toHex(leaf));
+				w.newLine();
+			}
+		}
+	}
+
+	static TreeHash read(Path archive) throws IOException {
+		HexFormat hex = HexFormat.of();
+		try (BufferedReader r = Files.newBufferedReader(path(archive))) {
+			if (!HEADER.equals(r.readLine()))
+				throw new IOException("Not a tree hash: " + path(archive));
+			TreeHash t = new TreeHash(
+					Options.ChecksumAlgorithm.valueOf(value(r.readLine(), "algorithm=")),
+					Integer.parseInt(value(r.readLine(), "blockSize=")));
+			t.size = Long.parseLong(value(r.readLine(), "size="));
+			t.root = hex.parseHex(value(r.readLine(), "root="));
+			String line;
+			while ((line = r.readLine()) != null)
+				t.leaves.add(hex.parseHex(line));
+			if (t.blockSize <= 0 || !Arrays.equals(t.root, t.combine()))
+				throw new IOException("Inconsistent tree hash: " + path(archive));
+			return t;
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid tree hash: " + path(archive), e);
+		}
+	}
+
+	static Path path(Path archive) {
+		String name = archive.getFileName().toString();
+		return archive.resolveSibling(name.substring(0, name.lastIndexOf('.')) + SUFFIX);
+	}
+
+	/*
+	 * Checks samplePercent of the blocks, picked at random, on the block
+	 * pool of the verifier.  Returns the damaged ranges as {start, end}.
+	 */
+	List<long[]> verify(Path archive, Verifier verifier, int samplePercent) throws IOException {
+		List<long[]> damaged = new ArrayList<>();
+		try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ)) {
+			long actualSize = ch.size();
+			if (actualSize != size)
+				damaged.add(new long[] { Math.min(size, actualSize), Math.max(size, actualSize) });
+
+			List<Integer> blocks = new ArrayList<>();
+			for (int i = 0; i < leaves.size(); i++)
+				blocks.add(i);
+			if (samplePercent < 100) {
+				Collections.shuffle(blocks);
+				blocks = blocks.subList(0, (blocks.size() * samplePercent + 99) / 100);
+				Collections.sort(blocks);
+			}
+
+			List<Future<Boolean>> pending = new ArrayList<>();
+			for (int i : blocks) {
+				long pos = (long)i * blockSize;
+				pending.add(verifier.submitBlock(() -> Arrays.equals(leaves.get(i),
+								verifier.checksum(ch, pos, blockSize, algorithm))));
+			}
+
+			for (int k = 0; k < blocks.size(); k++) {
+				if (Verifier.get(pending.get(k)))
+					continue;
+				long start = (long)blocks.get(k) * blockSize;
+				long end = Math.min(start + blockSize, size);
+				long last[] = damaged.isEmpty() ? null : damaged.get(damaged.size() - 1);
+				if (last != null && last[1] == start)
+					last[1] = end;
+				else
+					damaged.add(new long[] { start, end });
+			}
+		}
+		return damaged;
+	}
+
+	/* Leaves are combined as H(0x01 || left || right), an odd one moves up as it is */
+	private byte[] combine() {
+		List<byte[]> level = new ArrayList<>(leaves);
+		if (level.isEmpty())
+			return new byte[0];
+
+		Checksum sum = new Checksum(algorithm);
+		while (level.size() > 1) {
+			List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 == level.size()) {
+					next.add(level.get(i));
+					continue;
+				}
+				sum.update(new byte[] { 1 }, 0, 1);
+				sum.update(level.get(i), 0, level.get(i).length);
+				sum.update(level.get(i + 1), 0, level.get(i + 1).length);
+				next.add(sum.digest());
+			}
+			level = next;
+		}
+		return level.get(0);
+	}
+
+	private static String value(String line, String key) throws IOException {
+		if (line == null || !line.startsWith(key))
+			throw new IOException("Missing '" + key + "' in tree hash");
+		return line.substring(key.length());
+	}
+}
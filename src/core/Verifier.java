@@ -0,0 +1,139 @@
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Hashes archives on a pool of threads, each one with its own digest and
+ * direct buffer, reused from one archive to the next.  At most ioLimit
+ * files are read at the same time, which keeps a spinning disk from
+ * seeking between all of them.  Blocks of an archive go to a pool of
+ * their own, as archive tasks wait for them.
+ */
+class Verifier implements Closeable {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	interface IoTask<T> {
+		T run() throws IOException;
+	}
+
+	private final ExecutorService pool;
+	private final ExecutorService blockPool;
+	private final Semaphore io;
+	final Metrics metrics; /* bytes read and time spent hashing */
+	private final ThreadLocal<Map<Options.ChecksumAlgorithm,Checksum>> checksums =
+		ThreadLocal.withInitial(() -> new EnumMap<>(Options.ChecksumAlgorithm.class));
+	private final ThreadLocal<ByteBuffer> buffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+	Verifier(int threads, int ioLimit, Metrics metrics) {
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "dumback-verify");
+			t.setDaemon(true);
+			return t;
+		});
+		this.blockPool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "dumback-verify-block");
+			t.setDaemon(true);
+			return t;
+		});
+		this.io = ioLimit > 0 ? new Semaphore(ioLimit) : null;
+		this.metrics = metrics;
+	}
+
+	<T> Future<T> submit(Callable<T> task) {
+		return pool.submit(task);
+	}
+
+	<T> Future<T> submitBlock(Callable<T> task) {
+		return blockPool.submit(task);
+	}
+
+	/* Runs a task that reads from the disk within the I/O limit */
+	<T> T withIo(IoTask<T> task) throws IOException {
+		if (io != null) {
+			try {
+				io.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		try {
+			return task.run();
+		} finally {
+			if (io != null)
+				io.release();
+		}
+	}
+
+	byte[] checksum(Path file, Options.ChecksumAlgorithm algorithm) throws IOException {
+		Checksum sum = checksums.get().computeIfAbsent(algorithm, Checksum::new);
+		ByteBuffer buf = buffer.get();
+		sum.reset();
+		return withIo(() -> {
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+				int n;
+				while ((n = ch.read(buf.clear())) != -1) {
+					long start = System.nanoTime();
+					sum.update(buf.flip());
+					metrics.hashed(System.nanoTime() - start);
+					metrics.verified(n);
+				}
+			}
+			return sum.digest();
+		});
+	}
+
+	/* Checksum of len bytes of ch from pos, fewer if the file ends before */
+	byte[] checksum(FileChannel ch, long pos, int len, Options.ChecksumAlgorithm algorithm) throws IOException {
+		Checksum sum = checksums.get().computeIfAbsent(algorithm, Checksum::new);
+		ByteBuffer buf = buffer.get();
+		sum.reset();
+		return withIo(() -> {
+			long p = pos;
+			long end = pos + len;
+			int n;
+			while (p < end && (n = ch.read(buf.clear().limit((int)Math.min(buf.capacity(), end - p)), p)) > 0) {
+				long start = System.nanoTime();
+				sum.update(buf.flip());
+				metrics.hashed(System.nanoTime() - start);
+				metrics.verified(n);
+				p += n;
+			}
+			return sum.digest();
+		});
+	}
+
+	static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	public void close() {
+		pool.shutdownNow();
+		blockPool.shutdownNow();
+	}
+}
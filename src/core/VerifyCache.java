@@ -0,0 +1,112 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Archives verified recently, with the metadata they had then.  An archive
+ * whose size, mtime and file key (inode) did not change since is not hashed
+ * again until the entry is older than the re-verification interval.  Only
+ * ZIP archives are kept: a dedup or link snapshot is only as good as its
+ * chunks or files, which its own metadata does not cover.
+ *
+ * Line: size TAB mtime TAB file key TAB digest TAB verified at TAB path
+ */
+class VerifyCache {
+	private static final String HEADER = "# Dumback verification cache";
+
+	private static class Entry {
+		long size;
+		long mtime;
+		String fileKey;
+		String digest;
+		long verifiedAt;
+	}
+
+	private final Path path;
+	private final Map<Path,Entry> entries = new ConcurrentHashMap<>();
+
+	VerifyCache(Path path) {
+		this.path = path;
+	}
+
+	/* Once, before the jobs sharing the cache use it */
+	synchronized void load() throws IOException {
+		if (!Files.exists(path))
+			return;
+
+		try (BufferedReader r = Files.newBufferedReader(path)) {
+			String line = r.readLine();
+			if (!HEADER.equals(line))
+				throw new IOException("Not a verification cache: " + path);
+			while ((line = r.readLine()) != null) {
+				String f[] = line.split("\t", 6);
+				if (f.length != 6)
+					continue;
+				try {
+					Entry e = new Entry();
+					e.size = Long.parseLong(f[0]);
+					e.mtime = Long.parseLong(f[1]);
+					e.fileKey = f[2];
+					e.digest = f[3];
+					e.verifiedAt = Long.parseLong(f[4]);
+					entries.put(Path.of(f[5]), e);
+				} catch (NumberFormatException | InvalidPathException e) {
+					/* Only costs a new verification */
+				}
+			}
+		}
+	}
+
+	/* Entries of archives that are gone are dropped */
+	synchronized void save() throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (BufferedWriter w = Files.newBufferedWriter(tmp)) {
+			w.write(HEADER);
+			w.newLine();
+			for (Map.Entry<Path,Entry> me : entries.entrySet()) {
+				if (!Files.exists(me.getKey()))
+					continue;
+				Entry e = me.getValue();
+				w.write(e.size + "\t" + e.mtime + "\t" + e.fileKey + "\t"
+						+ e.digest + "\t" + e.verifiedAt + "\t" + me.getKey());
+				w.newLine();
+			}
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* The digest the archive had when verified, null if it changed or must be verified again */
+	String lookup(Path archive, BasicFileAttributes attrs, long maxAgeMs) {
+		Entry e = entries.get(archive);
+		if (e == null
+				|| e.size != attrs.size()
+				|| e.mtime != attrs.lastModifiedTime().toMillis()
+				|| !e.fileKey.equals(String.valueOf(attrs.fileKey()))
+				|| System.currentTimeMillis() - e.verifiedAt > maxAgeMs)
+			return null;
+		return e.digest;
+	}
+
+	void put(Path archive, BasicFileAttributes attrs, String digest) {
+		Entry e = new Entry();
+		e.size = attrs.size();
+		e.mtime = attrs.lastModifiedTime().toMillis();
+		e.fileKey = String.valueOf(attrs.fileKey());
+		e.digest = digest;
+		e.verifiedAt = System.currentTimeMillis();
+		entries.put(archive, e);
+	}
+
+	void remove(Path archive) {
+		entries.remove(archive);
+	}
+}
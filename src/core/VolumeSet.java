@@ -0,0 +1,279 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * A ZIP backup split into volumes of at most 'volumeMB' of files each,
+ * counted before compression, named <base>.partNNN.zip.  Files are not
+ * split, so each volume is a ZIP of its own with its own sidecars, and a
+ * file larger than a volume gets one to itself.  Up to MAX_WORKERS volumes
+ * are written at the same time, each by a worker feeding its own Archiver
+ * with a share of the compression threads.
+ *
+ * Volumes are written as .part files and only renamed once all of them are
+ * complete, so an interrupted set is never taken for a backup.  It is
+ * deleted rather than resumed.
+ */
+class VolumeSet implements Closeable {
+	static final String VOLUME_TAG = ".part";
+	private static final Pattern VOLUME_NAME = Pattern.compile("(.*)\\.part(\\d{3})\\.zip");
+	private static final int MAX_WORKERS = 4;
+	private static final int MAX_VOLUMES = 999;
+	private static final int QUEUE_SIZE = 256;
+	private static final long ENTRY_OVERHEAD = 128; /* headers of an entry, besides its name */
+
+	private static class Item {
+		final Path path;
+		final String name;
+		final long size;
+		final long mtime;
+
+		Item(Path path, String name, long size, long mtime) {
+			this.path = path;
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	private static final Item END = new Item(null, null, 0, 0);
+
+	private static class Volume {
+		Path path;
+		Path partPath;
+		FileChannel ch;
+		Checksum sum;
+		TreeHash tree;
+		ZipWriter zip;
+		Archiver archiver;
+		final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		Future<Void> worker;
+		long assigned;
+		String digest; /* once finished */
+	}
+
+	private final Path dest;
+	private final String base;
+	private final Options options;
+	private final Archiver.Listener listener;
+	private final Metrics metrics;
+	private final Throttle throttle;
+	private final long volumeBytes;
+	private final int workerCount;
+	private final ExecutorService workers;
+	private final List<Volume> volumes = new ArrayList<>();
+	private final Deque<Volume> writing = new ArrayDeque<>(); /* workers not joined yet */
+	private boolean complete;
+
+	VolumeSet(Path dest, String base, Options options, Archiver.Listener listener,
+			Metrics metrics, Throttle throttle) {
+		this.dest = dest;
+		this.base = base;
+		this.options = options;
+		this.listener = listener;
+		this.metrics = metrics;
+		this.throttle = throttle;
+		this.volumeBytes = options.volumeMB * 1024L * 1024;
+		this.workerCount = Math.min(MAX_WORKERS, options.threadCount());
+		this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+			Thread t = new Thread(r, "dumback-volume");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/* Number of the volume at path, zero if it is not one */
+	static int number(Path path) {
+		Matcher m = VOLUME_NAME.matcher(path.getFileName().toString());
+		return m.matches() ? Integer.parseInt(m.group(2)) : 0;
+	}
+
+	/* What a set is called, its volumes without the number; other archives as they are */
+	static Path setPath(Path path) {
+		Matcher m = VOLUME_NAME.matcher(path.getFileName().toString());
+		return m.matches() ? path.resolveSibling(m.group(1) + ".zip") : path;
+	}
+
+	/* Called by a single thread, like Archiver.add() */
+	void add(Path path, String name, long size, long mtime) throws IOException {
+		long bytes = size + ENTRY_OVERHEAD + name.length();
+		Volume v = writing.peekLast();
+		if (v == null || v.assigned > 0 && v.assigned + bytes > volumeBytes) {
+			if (v != null)
+				put(v, END);
+			v = open();
+		}
+		v.assigned += bytes;
+		put(v, new Item(path, name, size, mtime));
+	}
+
+	/* Waits for every file to be written; the last volume is left open, see lastZip() */
+	void awaitFiles() throws IOException {
+		Volume last = writing.peekLast();
+		if (last == null)
+			last = open();
+		put(last, END);
+		while (!writing.isEmpty()) {
+			Volume v = writing.removeFirst();
+			join(v);
+			if (v != last)
+				finish(v);
+		}
+	}
+
+	/* The writer of the last volume, once awaitFiles() returned */
+	ZipWriter lastZip() {
+		return volumes.get(volumes.size() - 1).zip;
+	}
+
+	/* Finishes the last volume and gives every volume its final name and sidecars */
+	List<Path> complete() throws IOException {
+		finish(volumes.get(volumes.size() - 1));
+
+		List<Path> paths = new ArrayList<>();
+		for (Volume v : volumes) {
+			if (v.tree != null) {
+				v.tree.write(v.path);
+				metrics.hashed(v.tree.hashNanos());
+			}
+			Checksum.writeSidecar(v.path, v.sum.algorithm, v.digest);
+			metrics.hashed(v.sum.wrapNanos());
+			metrics.written(Files.size(v.partPath));
+		}
+		for (Volume v : volumes) {
+			Files.move(v.partPath, v.path, StandardCopyOption.ATOMIC_MOVE);
+			paths.add(v.path);
+		}
+		complete = true;
+		return paths;
+	}
+
+	/* Deletes what was written unless the set is complete */
+	@Override
+	public void close() {
+		workers.shutdownNow();
+		if (complete)
+			return;
+
+		for (Volume v : volumes) {
+			v.archiver.close();
+			try {
+				v.zip.close();
+			} catch (IOException e) {
+			}
+			try {
+				v.ch.close();
+				Files.deleteIfExists(v.partPath);
+				for (Path sidecar : Checksum.sidecars(v.path))
+					Files.deleteIfExists(sidecar);
+				Files.deleteIfExists(TreeHash.path(v.path));
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private Volume open() throws IOException {
+		while (writing.size() >= workerCount) {
+			Volume v = writing.removeFirst();
+			join(v);
+			finish(v);
+		}
+		if (volumes.size() == MAX_VOLUMES)
+			throw new IOException("More than " + MAX_VOLUMES + " volumes, 'volumeMB' is too small");
+
+		Volume v = new Volume();
+		v.path = dest.resolve(String.format("%s%s%03d.zip", base, VOLUME_TAG, volumes.size() + 1));
+		v.partPath = Checkpoint.partPath(v.path);
+		v.ch = FileChannel.open(v.partPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		v.sum = new Checksum(options.checksum);
+		OutputStream out = throttle.wrap(Channels.newOutputStream(v.ch));
+		if (options.treeBlockMB > 0) {
+			v.tree = new TreeHash(options.checksum, options.treeBlockMB * 1024 * 1024);
+			out = v.tree.wrap(out);
+		}
+		v.zip = new ZipWriter(new BufferedOutputStream(v.sum.wrap(out), 1024 * 1024));
+		v.archiver = new Archiver(v.zip, Math.max(1, options.threadCount() / workerCount),
+				options.compressionLevel, options.storeExtensions, listener, metrics, throttle);
+		volumes.add(v);
+		v.worker = workers.submit(() -> write(v));
+		writing.addLast(v);
+		return v;
+	}
+
+	/* The work of a worker: the files of its queue, until END */
+	private Void write(Volume v) throws IOException {
+		try {
+			Item item;
+			while ((item = v.queue.take()) != END)
+				v.archiver.add(item.path, item.name, item.size, item.mtime);
+			v.archiver.finish();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} finally {
+			v.archiver.close();
+		}
+		return null;
+	}
+
+	/* Queues an item, unless the worker failed */
+	private void put(Volume v, Item item) throws IOException {
+		try {
+			while (!v.queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+				if (v.worker.isDone()) {
+					join(v);
+					throw new IOException("Volume writer stopped: " + v.path);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static void join(Volume v) throws IOException {
+		try {
+			v.worker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static void finish(Volume v) throws IOException {
+		v.zip.finish();
+		v.ch.force(true);
+		v.zip.close(); /* completes the tree hash, closes the channel */
+		v.digest = Backup.toHex(v.sum.digest());
+	}
+}
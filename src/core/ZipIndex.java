@@ -0,0 +1,174 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Entries of a ZIP archive as listed by its central directory */
+class ZipIndex {
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int EOCD_SIZE = 22;
+	private static final int MAX_COMMENT = 0xFFFF;
+
+	static class Entry {
+		String name;
+		int method;
+		int dosTime;
+		long crc;
+		long csize;
+		long size;
+		long offset; /* of the local header */
+	}
+
+	final List<Entry> entries;
+	final long cdOffset;
+	final long cdSize;
+
+	private ZipIndex(List<Entry> entries, long cdOffset, long cdSize) {
+		this.entries = entries;
+		this.cdOffset = cdOffset;
+		this.cdSize = cdSize;
+	}
+
+	static ZipIndex read(FileChannel ch) throws IOException {
+		long fileSize = ch.size();
+		int tailSize = (int)Math.min(fileSize, EOCD_SIZE + MAX_COMMENT);
+		ByteBuffer tail = readAt(ch, fileSize - tailSize, tailSize);
+
+		int eocd = -1;
+		for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == 0x06054b50) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1)
+			throw new IOException("No end of central directory");
+
+		long count = tail.getShort(eocd + 10) & 0xFFFF;
+		long cdSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+		long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+
+		if (count == 0xFFFF || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+			long locator = fileSize - tailSize + eocd - 20;
+			ByteBuffer loc = readAt(ch, locator, 20);
+			if (loc.getInt(0) != 0x07064b50)
+				throw new IOException("No ZIP64 end of central directory locator");
+			ByteBuffer z64 = readAt(ch, loc.getLong(8), 56);
+			if (z64.getInt(0) != 0x06064b50)
+				throw new IOException("No ZIP64 end of central directory");
+			count = z64.getLong(32);
+			cdSize = z64.getLong(40);
+			cdOffset = z64.getLong(48);
+		}
+
+		if (cdOffset + cdSize > fileSize || cdSize > Integer.MAX_VALUE)
+			throw new IOException("Invalid central directory");
+
+		MappedByteBuffer cd = ch.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize);
+		cd.order(ByteOrder.LITTLE_ENDIAN);
+
+		List<Entry> entries = new ArrayList<>((int)Math.min(count, 1 << 20));
+		int p = 0;
+		for (long i = 0; i < count; i++) {
+			if (p + 46 > cdSize || cd.getInt(p) != 0x02014b50)
+				throw new IOException("Invalid central directory header");
+
+			Entry e = new Entry();
+			e.method = cd.getShort(p + 10) & 0xFFFF;
+			e.dosTime = cd.getInt(p + 12);
+			e.crc = cd.getInt(p + 16) & ZIP64_MAGIC;
+			e.csize = cd.getInt(p + 20) & ZIP64_MAGIC;
+			e.size = cd.getInt(p + 24) & ZIP64_MAGIC;
+			int nameLen = cd.getShort(p + 28) & 0xFFFF;
+			int extraLen = cd.getShort(p + 30) & 0xFFFF;
+			int commentLen = cd.getShort(p + 32) & 0xFFFF;
+			e.offset = cd.getInt(p + 42) & ZIP64_MAGIC;
+
+			byte name[] = new byte[nameLen];
+			cd.get(p + 46, name);
+			e.name = new String(name, StandardCharsets.UTF_8);
+
+			int x = p + 46 + nameLen;
+			int extraEnd = x + extraLen;
+			while (x + 4 <= extraEnd) {
+				int id = cd.getShort(x) & 0xFFFF;
+				int len = cd.getShort(x + 2) & 0xFFFF;
+				if (id == 0x0001) {
+					int v = x + 4;
+					if (e.size == ZIP64_MAGIC) {
+						e.size = cd.getLong(v);
+						v += 8;
+					}
+					if (e.csize == ZIP64_MAGIC) {
+						e.csize = cd.getLong(v);
+						v += 8;
+					}
+					if (e.offset == ZIP64_MAGIC)
+						e.offset = cd.getLong(v);
+				}
+				x += 4 + len;
+			}
+
+			entries.add(e);
+			p = extraEnd + commentLen;
+		}
+
+		return new ZipIndex(entries, cdOffset, cdSize);
+	}
+
+	/* Offset of the entry data, after its local header */
+	long dataOffset(FileChannel ch, Entry e) throws IOException {
+		ByteBuffer local = readAt(ch, e.offset, 30);
+		if (local.getInt(0) != 0x04034b50)
+			throw new IOException("Invalid local header: " + e.name);
+		return e.offset + 30 + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+	}
+
+	/* Entries with bytes in [start, end), by the offset where each one starts */
+	List<Entry> entriesIn(long start, long end) {
+		List<Entry> sorted = new ArrayList<>(entries);
+		sorted.sort((a, b) -> Long.compare(a.offset, b.offset));
+
+		List<Entry> found = new ArrayList<>();
+		for (int i = 0; i < sorted.size(); i++) {
+			Entry e = sorted.get(i);
+			long entryEnd = i + 1 < sorted.size() ? sorted.get(i + 1).offset : cdOffset;
+			if (e.offset < end && entryEnd > start)
+				found.add(e);
+		}
+		return found;
+	}
+
+	/* Milliseconds since the epoch of a DOS date and time, in the local time zone */
+	static long javaTime(int dosTime) {
+		try {
+			return LocalDateTime.of(
+					(dosTime >>> 25) + 1980,
+					(dosTime >> 21) & 0xf,
+					(dosTime >> 16) & 0x1f,
+					(dosTime >> 11) & 0x1f,
+					(dosTime >> 5) & 0x3f,
+					(dosTime & 0x1f) << 1)
+				.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeException e) {
+			return 0;
+		}
+	}
+
+	private static ByteBuffer readAt(FileChannel ch, long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining())
+			if (ch.read(buf, pos + buf.position()) < 0)
+				throw new IOException("Unexpected end of archive");
+		return buf.flip();
+	}
+}
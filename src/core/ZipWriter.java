@@ -0,0 +1,307 @@
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ * Append-only ZIP writer for entries that were already compressed elsewhere.
+ * Entries with known sizes get a complete local header; entries written in
+ * pieces use a data descriptor, like java.util.zip.ZipOutputStream does.
+ * ZIP64 records are written only when a size, offset or count needs them;
+ * an entry written in pieces gets them when its size given beforehand may
+ * need them once compressed, as its local header is written first.
+ * A writer can go on with an archive left unfinished, given the entries it
+ * holds (see Checkpoint).
+ */
+class ZipWriter implements Closeable {
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+	private static final int FLAG_DESCRIPTOR = 1 << 3;
+	private static final int FLAG_UTF8 = 1 << 11;
+
+	static class Entry {
+		byte name[];
+		int flags;
+		int method;
+		int dosTime;
+		long crc;
+		long csize;
+		long size;
+		long offset;
+		long mtime; /* not in the archive, exact */
+		boolean zip64; /* sizes in the local header and descriptor */
+
+		String name() {
+			return new String(name, StandardCharsets.UTF_8);
+		}
+	}
+
+	private final OutputStream out;
+	private final ByteBuffer header = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+	private final List<Entry> entries = new ArrayList<>();
+	private Entry current;
+	private long written;
+	private boolean finished;
+
+	ZipWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/* Goes on after the given entries, out being at offset size of the archive */
+	ZipWriter(OutputStream out, List<Entry> entries, long size) {
+		this.out = out;
+		this.entries.addAll(entries);
+		this.written = size;
+	}
+
+	long size() {
+		return written;
+	}
+
+	/* The complete entries, in the order they were written */
+	List<Entry> entries() {
+		return entries;
+	}
+
+	/* Leaves entries out of the central directory, their data stays unreferenced */
+	void drop(Collection<Entry> dropped) {
+		entries.removeAll(new HashSet<>(dropped));
+	}
+
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/* Writes a whole entry at once */
+	void writeEntry(String name, long mtime, int method,
+			long crc, long size, byte data[], int len) throws IOException {
+		Entry e = newEntry(name, mtime, method, 0);
+		e.crc = crc;
+		e.csize = len;
+		e.size = size;
+		e.zip64 = size >= ZIP64_MAGIC;
+		writeLocalHeader(e);
+		write(data, 0, len);
+		entries.add(e);
+	}
+
+	/*
+	 * Starts an entry whose data is given by writeData() and sizes by
+	 * endEntry(); size is that of the data before compression.
+	 */
+	void beginEntry(String name, long mtime, int method, long size) throws IOException {
+		if (current != null)
+			throw new IllegalStateException("Entry not ended: " + new String(current.name, StandardCharsets.UTF_8));
+		current = newEntry(name, mtime, method, FLAG_DESCRIPTOR);
+		current.zip64 = maxCompressed(size) >= ZIP64_MAGIC;
+		writeLocalHeader(current);
+	}
+
+	void writeData(byte data[], int off, int len) throws IOException {
+		write(data, off, len);
+		current.csize += len;
+	}
+
+	void endEntry(long crc, long size) throws IOException {
+		Entry e = current;
+		e.crc = crc;
+		e.size = size;
+		if (!e.zip64 && (e.csize >= ZIP64_MAGIC || e.size >= ZIP64_MAGIC))
+			throw new IOException("Entry larger than given: " + e.name());
+
+		header.clear();
+		header.putInt(0x08074b50);
+		header.putInt((int)crc);
+		if (e.zip64) {
+			header.putLong(e.csize);
+			header.putLong(e.size);
+		} else {
+			header.putInt((int)e.csize);
+			header.putInt((int)e.size);
+		}
+		writeHeader();
+
+		entries.add(e);
+		current = null;
+	}
+
+	/* Writes the central directory, the stream is left open */
+	void finish() throws IOException {
+		if (finished)
+			return;
+		finished = true;
+
+		long cdOffset = written;
+		for (Entry e : entries)
+			writeCentralHeader(e);
+		long cdSize = written - cdOffset;
+
+		int count = entries.size();
+		boolean zip64 = count >= ZIP64_MAGIC_COUNT
+			|| cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+
+		if (zip64) {
+			long zip64Offset = written;
+			header.clear();
+			header.putInt(0x06064b50);
+			header.putLong(44);
+			header.putShort((short)45);
+			header.putShort((short)45);
+			header.putInt(0);
+			header.putInt(0);
+			header.putLong(count);
+			header.putLong(count);
+			header.putLong(cdSize);
+			header.putLong(cdOffset);
+			writeHeader();
+
+			header.clear();
+			header.putInt(0x07064b50);
+			header.putInt(0);
+			header.putLong(zip64Offset);
+			header.putInt(1);
+			writeHeader();
+		}
+
+		header.clear();
+		header.putInt(0x06054b50);
+		header.putShort((short)0);
+		header.putShort((short)0);
+		header.putShort((short)Math.min(count, ZIP64_MAGIC_COUNT));
+		header.putShort((short)Math.min(count, ZIP64_MAGIC_COUNT));
+		header.putInt((int)Math.min(cdSize, ZIP64_MAGIC));
+		header.putInt((int)Math.min(cdOffset, ZIP64_MAGIC));
+		header.putShort((short)0);
+		writeHeader();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private Entry newEntry(String name, long mtime, int method, int flags) {
+		Entry e = new Entry();
+		e.name = name.getBytes(StandardCharsets.UTF_8);
+		e.flags = FLAG_UTF8 | flags;
+		e.method = method;
+		e.dosTime = dosTime(mtime);
+		e.mtime = mtime;
+		e.offset = written;
+		return e;
+	}
+
+	private void writeLocalHeader(Entry e) throws IOException {
+		boolean descriptor = (e.flags & FLAG_DESCRIPTOR) != 0;
+
+		header.clear();
+		header.putInt(0x04034b50);
+		header.putShort((short)(e.zip64 ? 45 : 20));
+		header.putShort((short)e.flags);
+		header.putShort((short)e.method);
+		header.putInt(e.dosTime);
+		header.putInt(descriptor ? 0 : (int)e.crc);
+		if (e.zip64) {
+			header.putInt((int)ZIP64_MAGIC);
+			header.putInt((int)ZIP64_MAGIC);
+		} else {
+			header.putInt(descriptor ? 0 : (int)e.csize);
+			header.putInt(descriptor ? 0 : (int)e.size);
+		}
+		header.putShort((short)e.name.length);
+		header.putShort((short)(e.zip64 ? 20 : 0));
+		writeHeader();
+		write(e.name, 0, e.name.length);
+
+		if (e.zip64) {
+			header.clear();
+			header.putShort((short)0x0001);
+			header.putShort((short)16);
+			header.putLong(descriptor ? 0 : e.size);
+			header.putLong(descriptor ? 0 : e.csize);
+			writeHeader();
+		}
+	}
+
+	private void writeCentralHeader(Entry e) throws IOException {
+		boolean bigSize = e.size >= ZIP64_MAGIC;
+		boolean bigCsize = e.csize >= ZIP64_MAGIC;
+		boolean bigOffset = e.offset >= ZIP64_MAGIC;
+		int extraLen = (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0);
+		int version = extraLen > 0 ? 45 : 20;
+
+		header.clear();
+		header.putInt(0x02014b50);
+		header.putShort((short)version);
+		header.putShort((short)version);
+		header.putShort((short)e.flags);
+		header.putShort((short)e.method);
+		header.putInt(e.dosTime);
+		header.putInt((int)e.crc);
+		header.putInt((int)(bigCsize ? ZIP64_MAGIC : e.csize));
+		header.putInt((int)(bigSize ? ZIP64_MAGIC : e.size));
+		header.putShort((short)e.name.length);
+		header.putShort((short)(extraLen > 0 ? extraLen + 4 : 0));
+		header.putShort((short)0);
+		header.putShort((short)0);
+		header.putShort((short)0);
+		header.putInt(0);
+		header.putInt((int)(bigOffset ? ZIP64_MAGIC : e.offset));
+		writeHeader();
+		write(e.name, 0, e.name.length);
+
+		if (extraLen > 0) {
+			header.clear();
+			header.putShort((short)0x0001);
+			header.putShort((short)extraLen);
+			if (bigSize)
+				header.putLong(e.size);
+			if (bigCsize)
+				header.putLong(e.csize);
+			if (bigOffset)
+				header.putLong(e.offset);
+			writeHeader();
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		write(header.array(), 0, header.position());
+	}
+
+	private void write(byte data[], int off, int len) throws IOException {
+		out.write(data, off, len);
+		written += len;
+	}
+
+	/* DEFLATE adds a few bytes every 64 KiB at worst, Archiver a flush every chunk */
+	private static long maxCompressed(long size) {
+		return size + size / 1024 + 1024;
+	}
+
+	private static int dosTime(long mtime) {
+		LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(mtime), ZoneId.systemDefault());
+		if (t.getYear() < 1980)
+			return (1 << 21) | (1 << 16);
+		return (t.getYear() - 1980) << 25
+			| t.getMonthValue() << 21
+			| t.getDayOfMonth() << 16
+			| t.getHour() << 11
+			| t.getMinute() << 5
+			| t.getSecond() >> 1;
+	}
+}
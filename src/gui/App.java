@@ -7,6 +7,7 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import javax.swing.*;
 import static core.I18n.i18n;
@@ -15,6 +16,13 @@ public class App {
 	private static Core core;
 	private static JFrame frame;
 	private static JLabel statusLabel;
+	private static JButton btnBackup;
+	private static JPanel progressPanel;
+	private static JProgressBar progressBar;
+	private static JLabel progressLabel;
+	private static JButton btnCancel;
+	private static CancellationToken backupCancel; /* of the running backup, null if none */
+	private static boolean exitAfterBackup;
 	private static Font fontSans;
 	private static Font fontMono;
 
@@ -59,6 +67,12 @@ public class App {
 			@Override
 			public void windowClosing(WindowEvent e) {
 				core.stopAutoBackup();
+				if (backupCancel != null) {
+					/* Exits once the partial archive is deleted */
+					exitAfterBackup = true;
+					cancelBackup();
+					return;
+				}
 				System.exit(0);
 			}
 		});
@@ -87,7 +101,7 @@ public class App {
 		buttonPanel.setPreferredSize(new Dimension(Integer.MAX_VALUE, (int)(height * 0.5)));
 		leftPanel.add(buttonPanel);
 
-		JButton btnBackup = new JButton(i18n("btn.Backup_now"));
+		btnBackup = new JButton(i18n("btn.Backup_now"));
 		btnBackup.addActionListener(ev -> backupNow());
 
 		JButton btnConfig = new JButton(i18n("btn.Configure"));
@@ -96,7 +110,10 @@ public class App {
 		JButton btnStatus = new JButton(i18n("btn.Check_status"));
 		btnStatus.addActionListener(ev -> showStatusDialog());
 
-		for (JButton btn : new JButton[]{btnBackup, btnConfig, btnStatus}) {
+		JButton btnRestore = new JButton(i18n("btn.Restore"));
+		btnRestore.addActionListener(ev -> showRestoreDialog());
+
+		for (JButton btn : new JButton[]{btnBackup, btnConfig, btnStatus, btnRestore}) {
 			btn.setMaximumSize(new Dimension(Integer.MAX_VALUE, btn.getPreferredSize().height));
 			btn.setFocusPainted(false);
 			btn.setMargin(new Insets(0, 0, 0, 0));
@@ -118,6 +135,19 @@ public class App {
 				JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 		centerPanel.add(scrollPane, BorderLayout.CENTER);
 
+		progressPanel = new JPanel(new BorderLayout(10, 0));
+		progressBar = new JProgressBar(0, 1000);
+		progressLabel = new JLabel();
+		progressLabel.setFont(fontMono);
+		btnCancel = new JButton(i18n("btn.Cancel"));
+		btnCancel.setFocusPainted(false);
+		btnCancel.addActionListener(ev -> cancelBackup());
+		progressPanel.add(progressBar, BorderLayout.CENTER);
+		progressPanel.add(progressLabel, BorderLayout.SOUTH);
+		progressPanel.add(btnCancel, BorderLayout.EAST);
+		progressPanel.setVisible(false);
+		frame.add(progressPanel, BorderLayout.SOUTH);
+
 		if (visible) {
 			PrintStream out = new PrintStream(new SwingConsoleStream(textPane, Color.WHITE));
 			PrintStream err = new PrintStream(new SwingConsoleStream(textPane, Color.RED));
@@ -132,14 +162,73 @@ public class App {
 			showConfigDialog();
 	}
 
+	/* Runs the backup on a worker thread, the window shows its progress meanwhile */
 	private static void backupNow() {
-		frame.setEnabled(false);
-		Cursor oldCursor = frame.getCursor();
-		frame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-		core.backup();
-		updateStatus();
-		frame.setEnabled(true);
-		frame.setCursor(oldCursor);
+		if (backupCancel != null)
+			return;
+
+		CancellationToken cancel = new CancellationToken();
+		long start = System.nanoTime();
+		backupCancel = cancel;
+		btnBackup.setEnabled(false);
+		btnCancel.setEnabled(true);
+		progressBar.setValue(0);
+		progressBar.setIndeterminate(true);
+		progressLabel.setText(i18n("progress.Starting"));
+		progressPanel.setVisible(true);
+
+		new SwingWorker<Void,long[]>() {
+			@Override
+			protected Void doInBackground() {
+				core.backup((filesDone, filesTotal, bytesDone, bytesTotal, totalKnown) ->
+						publish(new long[] { filesDone, filesTotal, bytesDone, bytesTotal, totalKnown ? 1 : 0 }),
+						cancel);
+				return null;
+			}
+
+			@Override
+			protected void process(List<long[]> updates) {
+				if (!cancel.isCancelled())
+					showProgress(updates.get(updates.size() - 1), System.nanoTime() - start);
+			}
+
+			@Override
+			protected void done() {
+				backupCancel = null;
+				progressPanel.setVisible(false);
+				btnBackup.setEnabled(true);
+				updateStatus();
+				if (exitAfterBackup)
+					System.exit(0);
+			}
+		}.execute();
+	}
+
+	private static void cancelBackup() {
+		if (backupCancel == null)
+			return;
+		backupCancel.cancel();
+		btnCancel.setEnabled(false);
+		progressLabel.setText(i18n("progress.Cancelling"));
+	}
+
+	/* p is {files done, files total, bytes done, bytes total, 1 if the totals are final} */
+	private static void showProgress(long p[], long elapsedNanos) {
+		long bytesDone = p[2];
+		long bytesTotal = p[3];
+		boolean totalKnown = p[4] != 0;
+		double mbps = bytesDone / 1e6 / Math.max(elapsedNanos / 1e9, 0.001);
+
+		progressBar.setIndeterminate(bytesTotal == 0);
+		if (bytesTotal > 0)
+			progressBar.setValue((int)(bytesDone * 1000 / bytesTotal));
+
+		String text = i18n("progress.Status", p[0], p[1], bytesDone / 1e6, bytesTotal / 1e6, mbps);
+		if (totalKnown && mbps > 0 && bytesDone < bytesTotal) {
+			long eta = (long)((bytesTotal - bytesDone) / 1e6 / mbps);
+			text += i18n("progress.Eta", eta / 3600, eta / 60 % 60, eta % 60);
+		}
+		progressLabel.setText(text);
 	}
 
 	private static void showConfigDialog() {
@@ -244,7 +333,8 @@ public class App {
 							Path.of(destLabel.getText()),
 							(int)freqSpinner.getValue(),
 							(int)keepSpinner.getValue(),
-							dirs
+							dirs,
+							cfg.options
 							));
 				updateStatus();
 				dialog.dispose();
@@ -281,6 +371,16 @@ public class App {
 		else
 			cfg.dirsToBackup.forEach(dir -> sb.append("  - ").append(dir).append("\n"));
 
+		java.util.List<ConfigEntries> jobs = core.getJobs();
+		jobs.removeIf(ConfigEntries::isMain);
+		if (!jobs.isEmpty()) {
+			sb.append("\n").append(i18n("status.Jobs")).append(":\n");
+			for (ConfigEntries job : jobs)
+				sb.append("  - ").append(job.name).append(": ").append(job.destPath).append(" (")
+					.append(job.lastBackup != null ? job.lastBackup.toStringFormatted() : i18n("status.Never"))
+					.append(")\n");
+		}
+
 		Map<Path, Boolean> integrity = core.checkIntegrity();
 		if (integrity != null && !integrity.isEmpty()) {
 			sb.append("\n").append(i18n("status.Integrity_check")).append(":\n");
@@ -297,6 +397,93 @@ public class App {
 				i18n("status.Status"), JOptionPane.INFORMATION_MESSAGE);
 	}
 
+	private static void showRestoreDialog() {
+		java.util.List<Path> backups = core.listBackups();
+		if (backups.isEmpty()) {
+			JOptionPane.showMessageDialog(frame, i18n("restore.No_backups"),
+					i18n("restore.Restore"), JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+
+		JDialog dialog = new JDialog(frame, i18n("restore.Restore"), true);
+		dialog.setLayout(new BorderLayout());
+
+		Dimension screen = Toolkit.getDefaultToolkit().getScreenSize();
+		dialog.setSize((int)(screen.width * 0.45), (int)(screen.height * 0.55));
+		dialog.setLocationRelativeTo(frame);
+
+		JPanel topPanel = new JPanel(new BorderLayout());
+		dialog.add(topPanel, BorderLayout.NORTH);
+
+		JComboBox<Path> backupBox = new JComboBox<>(backups.toArray(new Path[0]));
+		backupBox.setRenderer(new DefaultListCellRenderer() {
+			@Override
+			public Component getListCellRendererComponent(JList<?> list, Object value,
+					int index, boolean isSelected, boolean cellHasFocus) {
+				Object name = value != null ? ((Path)value).getFileName() : null;
+				return super.getListCellRendererComponent(list, name, index, isSelected, cellHasFocus);
+			}
+		});
+		topPanel.add(backupBox, BorderLayout.NORTH);
+
+		JTextField pathField = new JTextField();
+		pathField.setToolTipText(i18n("restore.Path"));
+		topPanel.add(pathField, BorderLayout.CENTER);
+
+		JButton findBtn = new JButton(i18n("restore.Find_newest"));
+		topPanel.add(findBtn, BorderLayout.EAST);
+
+		DefaultListModel<ArchiveEntry> entriesModel = new DefaultListModel<>();
+		JList<ArchiveEntry> entriesList = new JList<>(entriesModel);
+		entriesList.setFont(fontMono);
+		dialog.add(new JScrollPane(entriesList), BorderLayout.CENTER);
+
+		Runnable listEntries = () -> {
+			entriesModel.clear();
+			java.util.List<ArchiveEntry> entries = core.listBackup((Path)backupBox.getSelectedItem());
+			if (entries == null)
+				return;
+			String prefix = pathField.getText().trim();
+			for (ArchiveEntry e : entries)
+				if (e.name.startsWith(prefix))
+					entriesModel.addElement(e);
+		};
+		backupBox.addActionListener(ev -> listEntries.run());
+		pathField.addActionListener(ev -> listEntries.run());
+
+		findBtn.addActionListener(ev -> {
+			Path found = core.findNewestBackup(pathField.getText());
+			if (found == null) {
+				JOptionPane.showMessageDialog(dialog, i18n("restore.Not_found"),
+						i18n("restore.Restore"), JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			backupBox.setSelectedItem(found);
+		});
+
+		JButton restoreBtn = new JButton(i18n("restore.Restore_to"));
+		restoreBtn.addActionListener(ev -> {
+			JFileChooser chooser = new JFileChooser();
+			chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			if (chooser.showSaveDialog(dialog) != JFileChooser.APPROVE_OPTION)
+				return;
+
+			Path archive = (Path)backupBox.getSelectedItem();
+			Path target = chooser.getSelectedFile().toPath();
+			java.util.List<ArchiveEntry> selected = entriesList.getSelectedValuesList();
+			if (selected.isEmpty())
+				core.restore(archive, pathField.getText(), target);
+			else
+				for (ArchiveEntry e : selected)
+					core.restore(archive, e.name, target);
+			dialog.dispose();
+		});
+		dialog.add(restoreBtn, BorderLayout.SOUTH);
+
+		listEntries.run();
+		dialog.setVisible(true);
+	}
+
 	private static void updateStatus() {
 		if (statusLabel != null)
 			statusLabel.setText(getStatusText());
@@ -310,7 +497,7 @@ public class App {
 				? cfg.lastBackup.daysBetween(new Date()) + " " + i18n("status.days_ago") + " (" + cfg.lastBackup.toStringFormatted() + ")"
 				: i18n("status.Never"),
 				i18n("status.Auto_backup"),
-				cfg.freqDays > 0 ? i18n("status.Enabled") : i18n("status.Disabled"));
+				cfg.isAutomatic() ? i18n("status.Enabled") : i18n("status.Disabled"));
 	}
 
 	private static void exitWithUsage() {
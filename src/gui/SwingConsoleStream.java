@@ -20,8 +20,10 @@ class SwingConsoleStream extends OutputStream {
 	public void write(int b) {
 		buffer.write(b);
 		if (b == '\n') {
+			/* Taken now, as the backup thread may keep writing */
+			String text = buffer.toString(StandardCharsets.UTF_8);
+			buffer.reset();
 			SwingUtilities.invokeLater(() -> {
-				String text = buffer.toString(StandardCharsets.UTF_8);
 				StyledDocument doc = textPane.getStyledDocument();
 				Style style = textPane.addStyle("ColorStyle", null);
 				StyleConstants.setForeground(style, color);
@@ -30,7 +32,6 @@ class SwingConsoleStream extends OutputStream {
 				} catch (BadLocationException e) {
 					throw new RuntimeException(e);
 				}
-				buffer.reset();
 			});
 		}
 	}
@@ -0,0 +1,192 @@
+package core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Throughput measurements, run with:
+ *   java -cp dumback.jar:dumback-test.jar core.Bench <benchmark> [files...]
+ */
+public class Bench {
+	private static final int MEMORY_SIZE = 256 * 1024 * 1024;
+	private static final int ROUNDS = 3;
+
+	/* Checksum algorithms over the given archives, or over random bytes in memory */
+	private static void checksum(List<Path> files) throws IOException {
+		byte data[] = null;
+		if (files.isEmpty()) {
+			data = new byte[MEMORY_SIZE];
+			new SplittableRandom(1).nextBytes(data);
+		}
+
+		byte buf[] = new byte[1024 * 1024];
+		for (Options.ChecksumAlgorithm algorithm : Options.ChecksumAlgorithm.values()) {
+			Checksum sum = new Checksum(algorithm);
+			double best = 0;
+			for (int round = 0; round <= ROUNDS; round++) {
+				long bytes = 0;
+				long start = System.nanoTime();
+				if (data != null) {
+					sum.update(data, 0, data.length);
+					bytes = data.length;
+				} else {
+					for (Path file : files) {
+						try (InputStream is = Files.newInputStream(file)) {
+							int n;
+							while ((n = is.read(buf)) != -1) {
+								sum.update(buf, 0, n);
+								bytes += n;
+							}
+						}
+					}
+				}
+				sum.digest();
+				double mbps = bytes / 1e6 / ((System.nanoTime() - start) / 1e9);
+				if (round > 0) /* the first one is warm up */
+					best = Math.max(best, mbps);
+			}
+			System.out.printf("%-8s %10.1f MB/s%n", algorithm, best);
+		}
+	}
+
+	/* Archiving of the given files and directories, compressing every file and adaptively */
+	private static void compress(List<Path> paths) throws IOException {
+		List<Path> files = new ArrayList<>();
+		long total = 0;
+		for (Path path : paths) {
+			try (Stream<Path> walk = Files.walk(path)) {
+				files.addAll(walk.filter(Files::isRegularFile).collect(Collectors.toList()));
+			}
+		}
+		for (Path file : files)
+			total += Files.size(file);
+
+		Options options = new Options();
+		for (boolean adaptive : new boolean[] { false, true }) {
+			double best = 0;
+			long size = 0;
+			for (int round = 0; round <= ROUNDS; round++) {
+				long start = System.nanoTime();
+				ZipWriter zip = new ZipWriter(OutputStream.nullOutputStream());
+				try (Archiver archiver = new Archiver(zip, options.threadCount(), options.compressionLevel,
+							adaptive ? options.storeExtensions : null, (name, sz, mtime, crc) -> {},
+							new Metrics(Metrics.Operation.BACKUP), new Throttle())) {
+					for (Path file : files)
+						archiver.add(file, file.toString(), Files.size(file), 0);
+					archiver.finish();
+					zip.finish();
+				}
+				size = zip.size();
+				double mbps = total / 1e6 / ((System.nanoTime() - start) / 1e9);
+				if (round > 0)
+					best = Math.max(best, mbps);
+			}
+			System.out.printf("%-8s %10.1f MB/s %14d bytes (%.1f%%)%n",
+					adaptive ? "adaptive" : "deflate", best, size, 100.0 * size / Math.max(total, 1));
+		}
+	}
+
+	/* Backup.create and checkIntegrity of the given directories, into a temporary directory */
+	private static void backup(List<Path> dirs) throws IOException {
+		long total = 0;
+		for (Path dir : dirs) {
+			try (Stream<Path> walk = Files.walk(dir)) {
+				total += walk.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+			}
+		}
+
+		Path tmp = Files.createTempDirectory("dumback-bench");
+		try (Log log = new Log(tmp.resolve("bench.log"))) {
+			Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+			Options options = new Options(Map.of("reverifyDays", "0"));
+			double bestCreate = 0;
+			double bestCheck = 0;
+			long gcCount = 0;
+			long gcMs = 0;
+			for (int round = 0; round <= ROUNDS; round++) {
+				Path dest = tmp.resolve("dest" + round);
+				Metrics created = new Metrics(Metrics.Operation.BACKUP);
+				Metrics checked = new Metrics(Metrics.Operation.VERIFY);
+				long gc[] = gcTotals();
+				backup.create(dest, dirs, options, created, new Progress(null, null));
+				created.end();
+				backup.checkIntegrity(dest, options, checked);
+				checked.end();
+				long gcAfter[] = gcTotals();
+				if (round == 0)
+					continue;
+				bestCreate = Math.max(bestCreate, total / 1e6 / (created.getTotalMs() / 1e3));
+				bestCheck = Math.max(bestCheck, total / 1e6 / (checked.getTotalMs() / 1e3));
+				if (round == ROUNDS) {
+					System.out.println(created);
+					System.out.println(checked);
+				}
+				gcCount += gcAfter[0] - gc[0];
+				gcMs += gcAfter[1] - gc[1];
+			}
+			System.out.printf("create   %10.1f MB/s%n", bestCreate);
+			System.out.printf("check    %10.1f MB/s (of the source size)%n", bestCheck);
+			System.out.printf("gc       %10d collections, %d ms per round%n", gcCount / ROUNDS, gcMs / ROUNDS);
+		} finally {
+			try (Stream<Path> walk = Files.walk(tmp)) {
+				for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+					Files.delete(p);
+			}
+		}
+	}
+
+	private static long[] gcTotals() {
+		long totals[] = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(gc.getCollectionCount(), 0);
+			totals[1] += Math.max(gc.getCollectionTime(), 0);
+		}
+		return totals;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: core.Bench checksum [files...]");
+		System.err.println("       core.Bench compress files...");
+		System.err.println("       core.Bench backup directories...");
+		System.exit(2);
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1)
+			usage();
+
+		List<Path> files = new ArrayList<>();
+		for (int i = 1; i < args.length; i++)
+			files.add(Path.of(args[i]));
+
+		switch (args[0]) {
+		case "checksum":
+			checksum(files);
+			break;
+		case "compress":
+			if (files.isEmpty())
+				usage();
+			compress(files);
+			break;
+		case "backup":
+			if (files.isEmpty())
+				usage();
+			backup(files);
+			break;
+		default:
+			usage();
+		}
+	}
+}
@@ -0,0 +1,819 @@
+package core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/*
+ * Round trips through backup and restore in a temporary directory, and
+ * retention plans, run with:
+ *   java -cp dumback.jar:dumback-test.jar core.Check [check...]
+ * Exits with 1 when one of them fails.
+ */
+public class Check {
+	private static final SplittableRandom random = new SplittableRandom(1);
+	private static boolean failed;
+
+	/*
+	 * A full backup and an incremental one changing, touching, keeping and
+	 * deleting files, then the directory restored from the incremental one, in one
+	 * archive and in volumes.
+	 */
+	private static void chain(Path tmp, Log log) throws IOException {
+		for (String volumeMB : new String[] { "0", "1" }) {
+			Path src = tmp.resolve("chain" + volumeMB).resolve("data");
+			Path dest = tmp.resolve("dest-chain" + volumeMB);
+			Options options = new Options(Map.of("fullEvery", "3", "volumeMB", volumeMB));
+			Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+			write(src.resolve("changed"), 700 * 1024);
+			write(src.resolve("kept"), 700 * 1024);
+			write(src.resolve("sub/deleted"), 10);
+			write(src.resolve("sub/kept"), 20);
+			write(src.resolve("touched"), 100);
+			backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+
+			nextSecond();
+			write(src.resolve("changed"), 600 * 1024);
+			Files.setLastModifiedTime(src.resolve("touched"), FileTime.fromMillis(System.currentTimeMillis() + 10000));
+			Files.delete(src.resolve("sub/deleted"));
+			write(src.resolve("sub/added"), 30);
+			backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+
+			Restore restore = new Restore(log);
+			Path newest = restore.findNewest(dest, "data");
+			expect(newest != null && Backup.isIncremental(newest), "newest backup of data is incremental: " + newest);
+			Path target = tmp.resolve("restored-chain" + volumeMB);
+			restore.extract(newest, "data", target);
+			expectSame(src, target.resolve("data"));
+			expect(restore.list(newest).size() == 5, "incremental backup lists the 5 files there");
+			expect(restore.findNewest(dest, "data/sub/deleted") == null, "deleted file is not found");
+		}
+	}
+
+	/*
+	 * The catalog of a full backup and an incremental one: every file found
+	 * whichever restart it falls near, paths stored with their shared
+	 * prefixes left out, a damaged catalog rebuilt the same, and the
+	 * entries of a deleted archive dropped.
+	 */
+	private static void catalog(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("catalog").resolve("data");
+		Path dest = tmp.resolve("dest-catalog");
+		Options options = new Options(Map.of("fullEvery", "3"));
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+		List<String> paths = new ArrayList<>();
+		for (int d = 0; d < 4; d++)
+			for (int i = 0; i < 25; i++)
+				paths.add(String.format("data/some/deeper/directory%d/file%02d", d, i));
+		paths.add("data/some/deeper/directory1x/file"); /* not under directory1 */
+		for (String path : paths)
+			write(src.resolveSibling(path), 10);
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+
+		nextSecond();
+		write(src.resolveSibling("data/some/deeper/directory0/file03"), 20);
+		Files.delete(src.resolveSibling("data/some/deeper/directory2/file10"));
+		for (int i = 0; i < 25; i++)
+			Files.delete(src.resolveSibling(String.format("data/some/deeper/directory3/file%02d", i)));
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+
+		List<Path> archives = Restore.archives(dest).stream().sorted().collect(Collectors.toList());
+		expect(archives.size() == 2 && Backup.isIncremental(archives.get(1)), "a full and an incremental archive: " + archives);
+		if (archives.size() != 2)
+			return;
+		Path full = archives.get(0);
+		Path incremental = archives.get(1);
+
+		Catalog catalog = Catalog.open(dest, log);
+		expect(catalog.find("").size() == paths.size() + 1, catalog.find("").size() + " versions in all");
+		boolean each = true;
+		for (String path : paths)
+			each &= catalog.find(path).size() == (path.endsWith("directory0/file03") ? 2 : 1);
+		expect(each, "each file found, with its versions");
+		expect(catalog.find("data/some/deeper/directory1").size() == 25, "directory found without the one its name starts");
+		expect(catalog.find("data/some/deeper/directory1/file0").isEmpty(), "a path is not a prefix of a file name");
+		expect(incremental.equals(catalog.findNewest("data/some/deeper/directory0/file03")), "changed file in the incremental archive");
+		expect(full.equals(catalog.findNewest("data/some/deeper/directory0/file04")), "unchanged file in the full archive");
+		expect(catalog.findNewest("data/some/deeper/directory2/file10") == null, "deleted file not found");
+		expect(incremental.equals(catalog.findNewest("data/some/deeper/directory2")), "directory with a deleted file in the incremental archive");
+		expect(full.equals(catalog.findNewest("data/some/deeper/directory3")), "deleted directory in the last archive it was in");
+
+		Path file = dest.resolve(Catalog.FILENAME);
+		byte good[] = Files.readAllBytes(file);
+		int pathBytes = catalog.find("").stream().mapToInt(v -> v.name.length()).sum();
+		expect(good.length < pathBytes, "catalog of " + good.length + " bytes, smaller than its " + pathBytes + " bytes of paths");
+
+		byte garbage[] = good.clone();
+		Arrays.fill(garbage, garbage.length / 2, garbage.length / 2 + 40, (byte)0xFF);
+		byte restart[] = good.clone();
+		restart[restart.length - 1] ^= 1; /* low byte of the last restart offset */
+		byte length[] = good.clone();
+		int first = new String(good, StandardCharsets.ISO_8859_1).indexOf(paths.get(0)) - 1; /* its new bytes */
+		System.arraycopy(new byte[] { -1, -1, -1, -1, 0x0F }, 0, length, first, 5); /* a negative int */
+		Map<String,byte[]> damages = Map.of("cut short", Arrays.copyOf(good, good.length / 2),
+				"overwritten", garbage, "with a wrong path length", length, "with a wrong restart", restart);
+		for (Map.Entry<String,byte[]> damage : damages.entrySet()) {
+			Files.write(file, damage.getValue());
+			Catalog rebuilt = Catalog.open(dest, log);
+			expect(rebuilt.find("").size() == paths.size() + 1 && Arrays.equals(good, Files.readAllBytes(file)),
+					"catalog " + damage.getKey() + " rebuilt the same");
+		}
+
+		Files.delete(incremental);
+		catalog = Catalog.open(dest, log);
+		expect(catalog.find("").size() == paths.size() && catalog.find("data/some/deeper/directory0/file03").size() == 1,
+				"entries of a deleted archive dropped");
+		expect(full.equals(catalog.findNewest("data/some/deeper/directory2/file10")), "file no longer deleted without its archive");
+	}
+
+	/*
+	 * Two dedup snapshots, the second after a file changed, a chunk was
+	 * damaged and a killed run left its snapshot behind, then everything
+	 * restored from the newest one and the old version from the first one.
+	 */
+	private static void dedup(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("dedup").resolve("data");
+		Path dest = tmp.resolve("dest-dedup");
+		Path chunkDir = dest.resolve(ChunkStore.CHUNK_DIR);
+		Options options = new Options(Map.of("format", "dedup"));
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+		int bigSize = 48 * 1024 * 1024;
+		write(src.resolve("big"), bigSize);
+		write(src.resolve("changed"), 1000);
+		write(src.resolve("empty"), 0);
+		write(src.resolve("sub/small"), 10);
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+		Path old = tmp.resolve("dedup-old");
+		Files.copy(src.resolve("changed"), old);
+		Files.setLastModifiedTime(old, Files.getLastModifiedTime(src.resolve("changed")));
+
+		Map<String,Path> chunks = files(chunkDir);
+		long average = bigSize / (chunks.size() - 2); /* one chunk each for changed and sub/small */
+		expect(average > 1024 * 1024 && average < 1700 * 1024,
+				"chunks of random data are " + average / 1024 + " KiB on average");
+
+		Path damaged = chunks.values().stream().max(Comparator.comparingLong(Check::size)).get();
+		Files.write(damaged, new byte[] { 1, 2, 3 });
+		Files.setLastModifiedTime(src.resolve("big"), FileTime.fromMillis(System.currentTimeMillis()));
+		Path stale = dest.resolve("dumback_20000101_000000" + ChunkStore.SNAPSHOT_SUFFIX + ".tmp");
+		Files.write(stale, new byte[10]);
+
+		nextSecond();
+		write(src.resolve("changed"), 2000);
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+		expect(!Files.exists(stale), "unfinished snapshot deleted");
+
+		Restore restore = new Restore(log);
+		List<Path> snapshots = Restore.backups(dest);
+		expect(snapshots.size() == 2 && snapshots.stream().allMatch(Backup::isSnapshot), "two snapshots listed: " + snapshots);
+		expect(restore.list(snapshots.get(0)).size() == 4, "snapshot lists its 4 files");
+
+		Path target = tmp.resolve("restored-dedup");
+		expect(restore.extract(snapshots.get(0), "", target) == 4, "4 files restored, the damaged chunk written again");
+		expectSame(src, target.resolve("data"));
+
+		Path oldTarget = tmp.resolve("restored-dedup-old");
+		restore.extract(snapshots.get(1), "data/changed", oldTarget);
+		expect(Arrays.equals(Files.readAllBytes(old), Files.readAllBytes(oldTarget.resolve("data/changed"))),
+				"old version restored from the first snapshot");
+	}
+
+	/*
+	 * Two link snapshots, the second after a file changed and a killed run
+	 * left its snapshot behind: unchanged files are linked, not copied.
+	 */
+	private static void link(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("link").resolve("data");
+		Path dest = tmp.resolve("dest-link");
+		Options options = new Options(Map.of("format", "link"));
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+		write(src.resolve("changed"), 1000);
+		write(src.resolve("sub/kept"), 2000);
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+		Path stale = dest.resolve("dumback_20000101_000000" + LinkSnapshot.SUFFIX + ".part");
+		write(stale.resolve("data/changed"), 10);
+
+		nextSecond();
+		write(src.resolve("changed"), 3000);
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+		expect(!Files.exists(stale), "unfinished snapshot deleted");
+
+		List<Path> snapshots;
+		try (Stream<Path> list = Files.list(dest)) {
+			snapshots = list.filter(Backup::isLinkSnapshot).sorted().collect(Collectors.toList());
+		}
+		expect(snapshots.size() == 2, "two snapshots written: " + snapshots);
+		if (snapshots.size() != 2)
+			return;
+		expectSame(src, snapshots.get(1).resolve("data"));
+		expect(Files.isSameFile(snapshots.get(0).resolve("data/sub/kept"), snapshots.get(1).resolve("data/sub/kept")),
+				"unchanged file linked");
+		expect(backup.checkIntegrity(dest, options, new Metrics(Metrics.Operation.VERIFY)).values().stream().allMatch(ok -> ok),
+				"snapshots check out");
+	}
+
+	/*
+	 * The rule leaving out each of a few files and directories: globs by
+	 * name or by path, for directories only, includes through a directory,
+	 * then size and age, the first rule a file matches given.
+	 */
+	private static void filter(Path tmp) throws IOException {
+		Filter filter = new Filter(Filter.globs("*.tmp, build/, docs/*.pdf, **/cache/**"),
+				Filter.globs("src/**, *.md, notes/"), 1, 10);
+		List<String> rules = new ArrayList<>();
+		for (int i = 0; i < filter.ruleCount(); i++)
+			rules.add(filter.rule(i));
+		expect(rules.equals(List.of("exclude *.tmp", "exclude build/", "exclude docs/*.pdf", "exclude **/cache/**",
+				"not included", "maxFileMB=1", "maxAgeDays=10")), "rules " + rules);
+
+		long now = System.currentTimeMillis();
+		Path small = tmp.resolve("filter/small");
+		Path big = tmp.resolve("filter/big");
+		Path old = tmp.resolve("filter/old");
+		write(small, 10);
+		write(big, 2 * 1024 * 1024);
+		write(old, 10);
+		Files.setLastModifiedTime(old, FileTime.fromMillis(now - 20 * 86400000L));
+		BasicFileAttributes smallAttrs = Files.readAttributes(small, BasicFileAttributes.class);
+		BasicFileAttributes bigAttrs = Files.readAttributes(big, BasicFileAttributes.class);
+		BasicFileAttributes oldAttrs = Files.readAttributes(old, BasicFileAttributes.class);
+
+		Map<String,Integer> files = new TreeMap<>();
+		files.put("a.tmp", 0);
+		files.put("src/deep/a.tmp", 0);
+		files.put("build", 4); /* a file, build/ only matches directories */
+		files.put("docs/manual.pdf", 2);
+		files.put("src/docs/manual.pdf", -1); /* a glob with a slash starts at the source */
+		files.put("docs/sub/manual.pdf", 4); /* '*' stays in a directory */
+		files.put("src/a/cache/b.java", 3);
+		files.put("src/Main.java", -1);
+		files.put("README.md", -1);
+		files.put("doc/guide/intro.md", -1);
+		files.put("notes/2026/todo.txt", -1); /* in an included directory */
+		files.put("notes", 4);
+		files.put("lib/a.jar", 4);
+		for (Map.Entry<String,Integer> e : files.entrySet()) {
+			int rule = filter.excludesFile(Path.of(e.getKey()), smallAttrs, now);
+			expect(rule == e.getValue(), e.getKey() + " left out by rule " + rule + ", expected " + e.getValue());
+		}
+		expect(filter.excludesFile(Path.of("src/big.java"), bigAttrs, now) == 5, "big file left out by maxFileMB");
+		expect(filter.excludesFile(Path.of("src/old.java"), oldAttrs, now) == 6, "old file left out by maxAgeDays");
+		expect(filter.excludesFile(Path.of("a.tmp"), bigAttrs, now) == 0, "first rule given");
+
+		Map<String,Integer> dirs = new TreeMap<>();
+		dirs.put("build", 1);
+		dirs.put("src/build", 1);
+		dirs.put("docs", -1);
+		dirs.put("src/cache", -1); /* the glob needs a path under cache */
+		dirs.put("src/cache/x", 3);
+		dirs.put("lib", -1); /* includes do not prune */
+		for (Map.Entry<String,Integer> e : dirs.entrySet()) {
+			int rule = filter.excludesDir(Path.of(e.getKey()));
+			expect(rule == e.getValue(), e.getKey() + "/ left out by rule " + rule + ", expected " + e.getValue());
+		}
+	}
+
+	/*
+	 * A ZIP backup stopped by an error halfway, as by a crash, and run again:
+	 * the entries its checkpoint holds stay where they were written.
+	 */
+	private static void resume(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("resume").resolve("data");
+		Path dest = tmp.resolve("dest-resume");
+		Options options = new Options(Map.of());
+		Throttle throttle = new Throttle();
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), throttle);
+
+		for (int i = 0; i < 40; i++)
+			write(src.resolve("file" + i), 100 * 1000);
+		ProgressListener crash = (filesDone, filesTotal, bytesDone, bytesTotal, totalKnown) -> {
+			if (filesDone >= 5)
+				throw new IllegalStateException("Crash");
+		};
+		throttle.setReadMBps(1); /* a few seconds, for the listener to be called */
+		try {
+			backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(crash, null));
+			expect(false, "backup stopped halfway");
+			return;
+		} catch (IOException | IllegalStateException e) {
+			expect(true, "backup stopped halfway: " + e);
+		} finally {
+			throttle.setReadMBps(0);
+		}
+
+		Path part;
+		try (Stream<Path> list = Files.list(dest)) {
+			part = list.filter(p -> p.toString().endsWith(Checkpoint.PART_SUFFIX)).findFirst().orElse(null);
+		}
+		expect(part != null, "part file kept: " + part);
+		if (part == null)
+			return;
+		Path archive = Checkpoint.archiveOf(part);
+		Checkpoint checkpoint = Checkpoint.read(archive);
+		int kept = checkpoint.entries.size();
+		expect(kept > 0 && kept < 40, kept + " entries in the checkpoint");
+
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+		expect(Files.exists(archive) && !Files.exists(part), "backup resumed into " + archive.getFileName());
+		Map<String,Long> offsets = new TreeMap<>();
+		try (FileChannel ch = FileChannel.open(archive, StandardOpenOption.READ)) {
+			for (ZipIndex.Entry e : ZipIndex.read(ch).entries)
+				offsets.put(e.name, e.offset);
+		}
+		expect(offsets.size() == 40 && checkpoint.entries.stream().allMatch(e -> offsets.get(e.name()) == e.offset),
+				"entries of the checkpoint reused");
+		expect(backup.checkIntegrity(dest, options, new Metrics(Metrics.Operation.VERIFY)).get(archive), "archive checks out");
+		Path target = tmp.resolve("restored-resume");
+		new Restore(log).extract(archive, "", target);
+		expectSame(src, target.resolve("data"));
+	}
+
+	/*
+	 * A backup a day for 120 days, a full one every 7th, planned with daily,
+	 * weekly and monthly rules: each point a rule selects is kept with the
+	 * points before it in its chain, all the others are deleted.
+	 */
+	private static void retention() {
+		LocalDateTime first = LocalDateTime.of(2026, 1, 1, 12, 0); /* a Thursday */
+		List<List<Path>> points = new ArrayList<>();
+		for (int i = 0; i < 120; i++) {
+			String time = first.plusDays(i).format(Backup.TIMESTAMP_FORMAT);
+			points.add(List.of(Path.of(Backup.ARCHIVE_PREFIX + time + (i % 7 == 0 ? "" : ".inc") + ".zip")));
+		}
+		LocalDateTime now = first.plusDays(119).plusHours(1);
+		Map<String,Function<LocalDateTime,Object>> periods = Map.of(
+				"keepDaily", LocalDateTime::toLocalDate,
+				"keepWeekly", t -> t.get(IsoFields.WEEK_BASED_YEAR) * 100 + t.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR),
+				"keepMonthly", YearMonth::from);
+
+		for (List<String> rules : List.of(List.of("keepDaily"), List.of("keepWeekly"), List.of("keepMonthly"),
+				List.of("keepDaily", "keepWeekly", "keepMonthly"))) {
+			Map<String,String> settings = new HashMap<>();
+			Set<Integer> expected = new TreeSet<>();
+			for (String rule : rules) {
+				settings.put(rule, "3");
+				Set<Object> seen = new HashSet<>();
+				for (int i = points.size() - 1; i >= 0 && seen.size() < 3; i--) {
+					if (!seen.add(periods.get(rule).apply(first.plusDays(i))))
+						continue;
+					for (int j = i; j >= i - i % 7; j--)
+						expected.add(j);
+				}
+			}
+
+			Retention.Plan plan = new Retention(0, new Options(settings))
+				.plan(points, p -> !Backup.isIncremental(p), now);
+			Set<Integer> kept = new TreeSet<>();
+			Set<Integer> deleted = new TreeSet<>();
+			for (int i = 0; i < points.size(); i++) {
+				if (plan.keep.containsKey(points.get(i).get(0)))
+					kept.add(i);
+				if (plan.delete.contains(points.get(i).get(0)))
+					deleted.add(i);
+			}
+			expect(kept.equals(expected) && deleted.size() + kept.size() == points.size() && !deleted.removeAll(kept),
+					rules + " keep days " + kept + ", expected " + expected);
+		}
+	}
+
+	/*
+	 * Which files are stored and which deflated: by extension, by a sample
+	 * of a small file and of the start of a large one, and all of them
+	 * stored with compressionLevel=0.
+	 */
+	private static void store(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("store").resolve("data");
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+		writeText(src.resolve("text.txt"), 20000);
+		writeText(src.resolve("text.jpg"), 20000); /* a listed extension */
+		write(src.resolve("random.bin"), 20000);
+		writeText(src.resolve("big-text.txt"), 3 * Archiver.CHUNK_SIZE);
+		writeText(src.resolve("big-text.zip"), 3 * Archiver.CHUNK_SIZE);
+		write(src.resolve("big-random.bin"), 3 * Archiver.CHUNK_SIZE);
+
+		Map<String,Boolean> compressed = Map.of("text.txt", true, "text.jpg", false, "random.bin", false,
+				"big-text.txt", true, "big-text.zip", false, "big-random.bin", false);
+		for (String level : new String[] { "6", "0" }) {
+			Path dest = tmp.resolve("dest-store" + level);
+			backup.create(dest, List.of(src), new Options(Map.of("compressionLevel", level)),
+					new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+			try (ZipFile zf = new ZipFile(Restore.backups(dest).get(0).toFile())) {
+				for (Map.Entry<String,Boolean> c : compressed.entrySet()) {
+					ZipEntry e = zf.getEntry("data/" + c.getKey());
+					boolean deflated = e.getCompressedSize() < e.getSize() * 9 / 10;
+					boolean single = e.getSize() <= Archiver.CHUNK_SIZE;
+					expect(deflated == (c.getValue() && level.equals("6"))
+							&& (deflated || e.getCompressedSize() < e.getSize() + e.getSize() / 1000 + 100)
+							&& (deflated || !single || e.getMethod() == ZipEntry.STORED),
+							"level " + level + ": " + c.getKey() + " " + (deflated ? "deflated" : "stored")
+								+ " as method " + e.getMethod() + ", " + e.getSize() + " to " + e.getCompressedSize() + " bytes");
+				}
+			}
+			Path target = tmp.resolve("restored-store" + level);
+			new Restore(log).extract(Restore.backups(dest).get(0), "data", target);
+			expectSame(src, target.resolve("data"));
+		}
+	}
+
+	/*
+	 * Token buckets: an empty one makes a read wait for its bytes, a full one
+	 * holds a second of its rate, threads share it and reads do not take
+	 * from the write one; then the compression thread limit.  Times are
+	 * loose, for a busy machine.
+	 */
+	private static void throttle() throws IOException {
+		Throttle throttle = new Throttle();
+		throttle.setReadMBps(10);
+		double seconds = seconds(() -> readMB(throttle, 20));
+		expect(seconds > 1.8 && seconds < 3, "20 MB at 10 MB/s from empty in " + seconds + " s");
+
+		sleep(1500);
+		double burst = seconds(() -> readMB(throttle, 10));
+		seconds = burst + seconds(() -> readMB(throttle, 10));
+		expect(burst < 0.3 && seconds > 0.8 && seconds < 1.6,
+				"full bucket: 10 MB in " + burst + " s, 10 more by " + seconds + " s");
+
+		seconds = seconds(() -> {
+			Thread other = new Thread(() -> readMB(throttle, 10));
+			other.start();
+			readMB(throttle, 10);
+			try {
+				other.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		expect(seconds > 1.8 && seconds < 3, "two threads reading 10 MB each in " + seconds + " s");
+
+		seconds = seconds(() -> {
+			try {
+				throttle.write(100 * 1000000);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		expect(seconds < 0.3, "writes not limited by the read rate: " + seconds + " s");
+		throttle.setReadMBps(0);
+		expect(seconds(() -> readMB(throttle, 100)) < 0.3, "no read limit once set to 0");
+
+		throttle.setThreads(2);
+		int busy[] = new int[2]; /* now, most */
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Thread t = new Thread(() -> {
+				try {
+					throttle.enter();
+				} catch (IOException e) {
+					return;
+				}
+				synchronized (busy) {
+					busy[1] = Math.max(busy[1], ++busy[0]);
+				}
+				sleep(100);
+				synchronized (busy) {
+					busy[0]--;
+				}
+				throttle.exit();
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		expect(busy[1] == 2, "at most " + busy[1] + " compression threads at once, limit 2");
+	}
+
+	private static void readMB(Throttle throttle, int mb) {
+		try {
+			for (int i = 0; i < mb; i++)
+				throttle.read(1000000);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static double seconds(Runnable r) {
+		long start = System.nanoTime();
+		r.run();
+		return Math.round((System.nanoTime() - start) / 1e7) / 100.0;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * A backup in volumes of 1 MiB: each one a ZIP of whole files, filled
+	 * until the next file does not fit, a file larger than a volume alone
+	 * in one, no volume left unfinished, and the set restored as one.
+	 */
+	private static void volumes(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("volumes").resolve("data");
+		Path dest = tmp.resolve("dest-volumes");
+		Options options = new Options(Map.of("volumeMB", "1"));
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+		for (int i = 0; i < 10; i++)
+			write(src.resolve("file" + i), 300 * 1024);
+		write(src.resolve("big"), 3 * 1024 * 1024);
+		backup.create(dest, List.of(src), options, new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+
+		List<Path> volumes;
+		try (Stream<Path> list = Files.list(dest)) {
+			volumes = list.filter(p -> VolumeSet.number(p) > 0).sorted().collect(Collectors.toList());
+		}
+		try (Stream<Path> list = Files.list(dest)) {
+			expect(list.noneMatch(p -> p.toString().endsWith(Checkpoint.PART_SUFFIX)), "no volume left unfinished");
+		}
+		boolean numbered = !volumes.isEmpty();
+		for (int i = 0; i < volumes.size(); i++)
+			numbered &= VolumeSet.number(volumes.get(i)) == i + 1
+				&& VolumeSet.setPath(volumes.get(i)).equals(VolumeSet.setPath(volumes.get(0)));
+		expect(numbered, volumes.size() + " volumes numbered from 1, of one set");
+
+		long volumeBytes = 1024 * 1024;
+		Map<String,Path> files = files(src);
+		Set<String> archived = new TreeSet<>();
+		boolean once = true;
+		List<List<ZipEntry>> contents = new ArrayList<>();
+		for (Path volume : volumes) {
+			try (ZipFile zf = new ZipFile(volume.toFile())) {
+				List<ZipEntry> entries = zf.stream()
+					.filter(e -> e.getName().startsWith("data/"))
+					.collect(Collectors.toList());
+				for (ZipEntry e : entries)
+					once &= archived.add(e.getName());
+				contents.add(entries);
+			}
+		}
+		expect(once && archived.size() == files.size(),
+				archived.size() + " files in the volumes, each in one, " + files.size() + " backed up");
+
+		for (int i = 0; i < contents.size(); i++) {
+			List<ZipEntry> entries = contents.get(i);
+			long bytes = entries.stream().mapToLong(Check::volumeBytes).sum();
+			expect(entries.size() == 1 || bytes <= volumeBytes,
+					"volume " + (i + 1) + ": " + entries.size() + " files, " + bytes + " bytes");
+			if (i + 1 < contents.size() && !contents.get(i + 1).isEmpty())
+				expect(bytes + volumeBytes(contents.get(i + 1).get(0)) > volumeBytes,
+						"volume " + (i + 1) + " full before the next one");
+		}
+		expect(contents.stream().anyMatch(entries -> entries.size() == 1 && entries.get(0).getName().equals("data/big")),
+				"big file in a volume of its own");
+
+		expect(backup.checkIntegrity(dest, options, new Metrics(Metrics.Operation.VERIFY)).values().stream().allMatch(ok -> ok),
+				"volumes check out");
+		Path target = tmp.resolve("restored-volumes");
+		Restore restore = new Restore(log);
+		restore.extract(restore.findNewest(dest, "data"), "data", target);
+		expectSame(src, target.resolve("data"));
+	}
+
+	/* What VolumeSet counts for an entry */
+	private static long volumeBytes(ZipEntry e) {
+		return e.getSize() + 128 + e.getName().length();
+	}
+
+	/*
+	 * A ZIP backup of stored, deflated, empty and multi-chunk files read back
+	 * by java.util.zip, with ZipFile and ZipInputStream, and an entry whose
+	 * size given beforehand needs ZIP64 read back with ZipFile.
+	 */
+	private static void zip(Path tmp, Log log) throws IOException {
+		Path src = tmp.resolve("zip").resolve("data");
+		Path dest = tmp.resolve("dest-zip");
+		Backup backup = new Backup(log, tmp.resolve("verify.cache"), new Throttle());
+
+		write(src.resolve("random"), 5000);
+		write(src.resolve("big"), 2 * Archiver.CHUNK_SIZE + 1000);
+		write(src.resolve("empty"), 0);
+		write(src.resolve("sub/photo.jpg"), 3000);
+		byte text[] = "Dumback ZIP check, the same line again\n".repeat(80000).getBytes(StandardCharsets.UTF_8);
+		Files.write(src.resolve("sub/text"), text);
+		Files.write(src.resolve("small-text"), Arrays.copyOf(text, 4000));
+		backup.create(dest, List.of(src), new Options(Map.of()), new Metrics(Metrics.Operation.BACKUP), new Progress(null, null));
+
+		Map<String,byte[]> want = new TreeMap<>();
+		for (Map.Entry<String,Path> e : files(src).entrySet())
+			want.put("data/" + e.getKey(), Files.readAllBytes(e.getValue()));
+		Path archive = Restore.backups(dest).get(0);
+
+		Map<String,byte[]> fromZipFile = new TreeMap<>();
+		try (ZipFile zf = new ZipFile(archive.toFile())) {
+			for (ZipEntry e : zf.stream().collect(Collectors.toList()))
+				try (InputStream in = zf.getInputStream(e)) {
+					fromZipFile.put(e.getName(), in.readAllBytes());
+				}
+		}
+		expectSameContent(want, fromZipFile, "ZipFile");
+
+		Map<String,byte[]> fromZipInputStream = new TreeMap<>();
+		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))) {
+			ZipEntry e;
+			while ((e = in.getNextEntry()) != null)
+				fromZipInputStream.put(e.getName(), in.readAllBytes());
+		}
+		expectSameContent(want, fromZipInputStream, "ZipInputStream");
+
+		byte data[] = Arrays.copyOf(text, 1000);
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		deflater.finish();
+		byte deflated[] = new byte[2000];
+		int len = deflater.deflate(deflated);
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipWriter zip = new ZipWriter(out);
+		zip.beginEntry("huge", System.currentTimeMillis(), ZipWriter.DEFLATED, 5L << 30);
+		zip.writeData(deflated, 0, len);
+		zip.endEntry(crc.getValue(), data.length);
+		zip.finish();
+
+		ByteBuffer local = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		expect(local.getShort(4) == 45 && local.getShort(28) == 20 && local.getShort(30 + "huge".length()) == 1,
+				"local header of an entry that may need ZIP64 has its extra field");
+		Path huge = tmp.resolve("huge.zip");
+		Files.write(huge, out.toByteArray());
+		try (ZipFile zf = new ZipFile(huge.toFile())) {
+			ZipEntry e = zf.getEntry("huge");
+			try (InputStream in = zf.getInputStream(e)) {
+				expect(Arrays.equals(data, in.readAllBytes()), "ZipFile reads the entry with ZIP64 sizes");
+			}
+		}
+	}
+
+	private static void write(Path file, int size) throws IOException {
+		byte data[] = new byte[size];
+		random.nextBytes(data);
+		Files.createDirectories(file.getParent());
+		Files.write(file, data);
+	}
+
+	/* Compresses to a few percent */
+	private static void writeText(Path file, int size) throws IOException {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < size)
+			text.append("Line ").append(random.nextInt(1000)).append(" of a text that compresses well\n");
+		Files.createDirectories(file.getParent());
+		Files.write(file, Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), size));
+	}
+
+	/* Backups are named by the second they start */
+	private static void nextSecond() {
+		sleep(1100);
+	}
+
+	private static void expect(boolean ok, String what) {
+		System.out.printf("%s  %s%n", ok ? "ok    " : "FAILED", what);
+		if (!ok)
+			failed = true;
+	}
+
+	/* Same files with the same content and modification times */
+	private static void expectSame(Path expected, Path actual) throws IOException {
+		Map<String,Path> want = files(expected);
+		Map<String,Path> got = files(actual);
+		expect(want.keySet().equals(got.keySet()), "restored " + got.keySet() + ", expected " + want.keySet());
+		for (Map.Entry<String,Path> e : want.entrySet()) {
+			Path r = got.get(e.getKey());
+			if (r == null)
+				continue;
+			expect(Arrays.equals(Files.readAllBytes(e.getValue()), Files.readAllBytes(r))
+					&& Files.getLastModifiedTime(e.getValue()).toMillis() / 2000
+						== Files.getLastModifiedTime(r).toMillis() / 2000, /* DOS time */
+					"content and time of " + e.getKey());
+		}
+	}
+
+	private static void expectSameContent(Map<String,byte[]> want, Map<String,byte[]> got, String reader) {
+		expect(want.keySet().equals(got.keySet()), reader + " reads " + got.keySet() + ", expected " + want.keySet());
+		for (Map.Entry<String,byte[]> e : want.entrySet())
+			if (got.containsKey(e.getKey()))
+				expect(Arrays.equals(e.getValue(), got.get(e.getKey())), reader + " reads the content of " + e.getKey());
+	}
+
+	private static long size(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static Map<String,Path> files(Path dir) throws IOException {
+		Map<String,Path> files = new TreeMap<>();
+		if (!Files.isDirectory(dir))
+			return files;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			for (Path p : walk.filter(Files::isRegularFile).collect(Collectors.toList()))
+				files.put(dir.relativize(p).toString().replace('\\', '/'), p);
+		}
+		return files;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: core.Check [catalog|chain|dedup|filter|link|resume|retention|store|throttle|volumes|zip]...");
+		System.exit(2);
+	}
+
+	public static void main(String args[]) throws IOException {
+		System.setProperty("dumback.checkpointSeconds", "0"); /* after every file */
+		List<String> checks = args.length > 0 ? List.of(args) : List.of("catalog", "chain", "dedup", "filter", "link", "resume", "retention", "store", "throttle", "volumes", "zip");
+		Path tmp = Files.createTempDirectory("dumback-check");
+		try (Log log = new Log(tmp.resolve("check.log"))) {
+			for (String check : checks) {
+				switch (check) {
+				case "catalog":
+					catalog(tmp, log);
+					break;
+				case "chain":
+					chain(tmp, log);
+					break;
+				case "dedup":
+					dedup(tmp, log);
+					break;
+				case "filter":
+					filter(tmp);
+					break;
+				case "link":
+					link(tmp, log);
+					break;
+				case "resume":
+					resume(tmp, log);
+					break;
+				case "retention":
+					retention();
+					break;
+				case "store":
+					store(tmp, log);
+					break;
+				case "throttle":
+					throttle();
+					break;
+				case "volumes":
+					volumes(tmp, log);
+					break;
+				case "zip":
+					zip(tmp, log);
+					break;
+				default:
+					usage();
+				}
+			}
+		} finally {
+			try (Stream<Path> walk = Files.walk(tmp)) {
+				for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+					Files.delete(p);
+			}
+		}
+		System.exit(failed ? 1 : 0);
+	}
+}